@@ -0,0 +1,124 @@
+package com.staxnet.mojo.tomcat.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with -rf csv, printing the change of
+ * every score and exiting with status 1 if any got worse by more than the
+ * threshold. Primary scores and the bytes allocated per operation reported
+ * by -prof gc are compared; other secondary results are ignored.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.staxnet.mojo.tomcat.benchmarks.CompareResults baseline.csv results.csv [threshold %]
+ * </pre>
+ */
+public class CompareResults {
+    private static final String ALLOCATION = ":gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CompareResults <baseline.csv> <results.csv> [threshold %]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        Map<String, Result> baseline = read(new File(args[0]));
+        Map<String, Result> results = read(new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            Result base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.println(String.format("  new   %s: %.3f %s", entry.getKey(),
+                        result.score, result.unit));
+                continue;
+            }
+            double change = base.score == 0 ? 0 : (result.score - base.score) * 100 / base.score;
+            boolean worse = result.higherIsBetter ? change < -threshold : change > threshold;
+            if (worse)
+                regressions++;
+            System.out.println(String.format("%s %s: %.3f -> %.3f %s (%+.1f%%)",
+                    worse ? "WORSE " : "      ", entry.getKey(), base.score,
+                    result.score, result.unit, change));
+        }
+        System.out.println(regressions + " of " + results.size()
+                + " scores worse than the baseline by more than " + threshold + "%");
+        if (regressions > 0)
+            System.exit(1);
+    }
+
+    private static Map<String, Result> read(File file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> header = parse(reader.readLine());
+            int benchmark = header.indexOf("Benchmark");
+            int mode = header.indexOf("Mode");
+            int score = header.indexOf("Score");
+            int unit = header.indexOf("Unit");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> fields = parse(line);
+                if (fields.size() < header.size())
+                    continue;
+                String name = fields.get(benchmark).replace("\u00b7", "");
+                boolean allocation = name.endsWith(ALLOCATION);
+                if (name.indexOf(':') >= 0 && !allocation)
+                    continue;
+                StringBuilder key = new StringBuilder(name);
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && fields.get(i).length() > 0)
+                        key.append(' ').append(header.get(i).substring(7)).append('=')
+                            .append(fields.get(i));
+                }
+                Result result = new Result();
+                result.score = Double.parseDouble(fields.get(score));
+                result.unit = fields.get(unit);
+                result.higherIsBetter = !allocation && fields.get(mode).equals("thrpt");
+                results.put(key.toString(), result);
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static List<String> parse(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append(c);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static class Result {
+        double score;
+        String unit;
+        boolean higherIsBetter;
+    }
+}
@@ -0,0 +1,24 @@
+package com.staxnet.mojo.tomcat.benchmarks;
+
+import java.io.OutputStream;
+
+/**
+ * Discards what is written to it, counting the bytes.
+ */
+public class CountingOutputStream extends OutputStream {
+    private long count = 0;
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,91 @@
+package com.staxnet.mojo.tomcat.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.staxnet.mojo.tomcat.StreamHelper;
+
+/**
+ * Copy throughput of {@link StreamHelper#transferStream} between heap
+ * streams and between files, where it uses channel transfers, and of
+ * {@link StreamHelper#readAll}, for content from the size of a small class
+ * to that of a large jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamHelperBenchmark {
+    @Param({ "4096", "262144", "16777216" })
+    public int size;
+
+    private File workDirectory;
+    private byte[] content;
+    private File source;
+    private File target;
+
+    @Setup
+    public void setUp() throws IOException {
+        content = new byte[size];
+        new Random(size).nextBytes(content);
+        workDirectory = WarDataset.createTempDirectory();
+        source = new File(workDirectory, "source");
+        target = new File(workDirectory, "target");
+        FileOutputStream out = new FileOutputStream(source);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        WarDataset.delete(workDirectory);
+    }
+
+    @Benchmark
+    public long transferStream() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        StreamHelper.transferStream(new ByteArrayInputStream(content), out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long transferStreamFiles() throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            StreamHelper.transferStream(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+        return target.length();
+    }
+
+    @Benchmark
+    public byte[] readAll() throws IOException {
+        return StreamHelper.readAll(new ByteArrayInputStream(content));
+    }
+}
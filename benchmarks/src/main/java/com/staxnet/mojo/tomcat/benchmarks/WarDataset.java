@@ -0,0 +1,233 @@
+package com.staxnet.mojo.tomcat.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.staxnet.mojo.tomcat.RawZipOutputStream;
+import com.staxnet.mojo.tomcat.ZipHelper;
+
+/**
+ * Generates exploded WAR-shaped directories to benchmark against. The content
+ * is derived from a fixed seed so every run packages the same bytes.
+ *
+ * <ul>
+ * <li>classes: many small class files under WEB-INF/classes, moderately
+ * compressible</li>
+ * <li>jars: a few large libraries under WEB-INF/lib, already compressed</li>
+ * <li>compressible: text resources (html, css, js, xml) that deflate well</li>
+ * <li>incompressible: images and other random content</li>
+ * <li>war: a mix of all of the above</li>
+ * </ul>
+ */
+public class WarDataset {
+    public static final String[] SHAPES = { "classes", "jars", "compressible",
+            "incompressible", "war" };
+
+    private static final long SEED = 20120401L;
+
+    private static final String[] WORDS = { "public", "private", "static",
+            "final", "class", "void", "return", "import", "java/lang/String",
+            "java/util/List", "Lcom/example/app/Service;", "<init>", "Code",
+            "LineNumberTable", "getName", "setName", "toString", "hashCode",
+            "equals", "request", "response", "session", "value", "index" };
+
+    private File directory;
+    private List<String> entryNames = new ArrayList<String>();
+    private File largestFile;
+    private Random random = new Random(SEED);
+
+    private WarDataset(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a dataset.
+     *
+     * @param shape
+     *            one of {@link #SHAPES}
+     * @param directory
+     *            the directory to create it in, which should be empty
+     * @return the dataset
+     * @throws IOException
+     */
+    public static WarDataset create(String shape, File directory)
+            throws IOException {
+        WarDataset dataset = new WarDataset(directory);
+        if (shape.equals("classes")) {
+            dataset.addClasses(4000);
+        } else if (shape.equals("jars")) {
+            dataset.addJars(6, 4 * 1024 * 1024);
+        } else if (shape.equals("compressible")) {
+            dataset.addTextResources(600, 32 * 1024);
+        } else if (shape.equals("incompressible")) {
+            dataset.addImages(300, 64 * 1024);
+        } else if (shape.equals("war")) {
+            dataset.addClasses(1500);
+            dataset.addJars(3, 2 * 1024 * 1024);
+            dataset.addTextResources(200, 16 * 1024);
+            dataset.addImages(100, 48 * 1024);
+        } else {
+            throw new IllegalArgumentException("unknown dataset shape: " + shape);
+        }
+        dataset.addFile("WEB-INF/web.xml", text(4 * 1024, dataset.random));
+        return dataset;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the names of the files, relative to the directory
+     */
+    public List<String> getEntryNames() {
+        return entryNames;
+    }
+
+    /**
+     * @return the largest file of the dataset
+     */
+    public File getLargestFile() {
+        return largestFile;
+    }
+
+    private void addClasses(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            String name = "WEB-INF/classes/com/example/app/p" + (i % 40)
+                    + "/Type" + i + ".class";
+            // class files mix a repetitive constant pool with bytecode
+            byte[] content = text(1024 + random.nextInt(7 * 1024), random);
+            for (int j = 0; j < content.length / 3; j++)
+                content[random.nextInt(content.length)] = (byte) random.nextInt();
+            addFile(name, content);
+        }
+    }
+
+    private void addJars(int count, int size) throws IOException {
+        for (int i = 0; i < count; i++) {
+            File file = newFile("WEB-INF/lib/library-" + i + ".jar");
+            ZipOutputStream jar = new ZipOutputStream(new FileOutputStream(file));
+            try {
+                int written = 0;
+                for (int j = 0; written < size; j++) {
+                    byte[] content = text(2 * 1024 + random.nextInt(14 * 1024), random);
+                    jar.putNextEntry(new ZipEntry("org/example/lib" + i + "/C" + j + ".class"));
+                    jar.write(content);
+                    jar.closeEntry();
+                    written += content.length / 3;
+                }
+            } finally {
+                jar.close();
+            }
+            added(file);
+        }
+    }
+
+    private void addTextResources(int count, int averageSize) throws IOException {
+        String[] extensions = { "html", "css", "js", "xml", "properties", "jsp" };
+        for (int i = 0; i < count; i++) {
+            String extension = extensions[i % extensions.length];
+            String name = (extension.equals("xml") || extension.equals("properties")
+                    ? "WEB-INF/classes/" : "static/") + "resource" + i + "." + extension;
+            addFile(name, text(averageSize / 2 + random.nextInt(averageSize), random));
+        }
+    }
+
+    private void addImages(int count, int averageSize) throws IOException {
+        for (int i = 0; i < count; i++) {
+            byte[] content = new byte[averageSize / 2 + random.nextInt(averageSize)];
+            random.nextBytes(content);
+            // a PNG signature, so content sniffing treats it as compressed
+            content[0] = (byte) 0x89;
+            content[1] = 'P';
+            content[2] = 'N';
+            content[3] = 'G';
+            addFile("images/image" + i + (i % 4 == 0 ? ".bin" : ".png"), content);
+        }
+    }
+
+    private static byte[] text(int size, Random random) {
+        StringBuilder text = new StringBuilder(size + 32);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        text.setLength(size);
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++)
+            bytes[i] = (byte) text.charAt(i);
+        return bytes;
+    }
+
+    private void addFile(String name, byte[] content) throws IOException {
+        File file = newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        added(file);
+    }
+
+    private File newFile(String name) {
+        File file = new File(directory, name);
+        file.getParentFile().mkdirs();
+        entryNames.add(name);
+        return file;
+    }
+
+    private void added(File file) {
+        if (largestFile == null || file.length() > largestFile.length())
+            largestFile = file;
+    }
+
+    /**
+     * Packages the dataset as a WAR.
+     *
+     * @param archive
+     * @throws IOException
+     */
+    public void writeArchive(File archive) throws IOException {
+        RawZipOutputStream zos = new RawZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(archive)));
+        try {
+            ZipHelper.addDirectoryToZip(directory, null, null, zos, null);
+        } finally {
+            zos.close();
+        }
+    }
+
+    /**
+     * @return a new empty directory under java.io.tmpdir
+     * @throws IOException
+     */
+    public static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("bees-bench", "");
+        directory.delete();
+        if (!directory.mkdirs())
+            throw new IOException("could not create " + directory);
+        return directory;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param file
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,73 @@
+package com.staxnet.mojo.tomcat.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.staxnet.mojo.tomcat.StreamHelper;
+import com.staxnet.mojo.tomcat.ZipHelper;
+
+/**
+ * Reading one entry, from the middle of a packaged {@link WarDataset}, with
+ * {@link ZipHelper#getZipEntry(File, String)}, which finds it through the
+ * central directory, and {@link ZipHelper#getZipEntry(java.io.InputStream, String)},
+ * which reads the archive up to it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipEntryBenchmark {
+    @Param({ "classes", "jars", "compressible", "incompressible", "war" })
+    public String shape;
+
+    private File workDirectory;
+    private File archive;
+    private String entryName;
+
+    @Setup
+    public void setUp() throws IOException {
+        workDirectory = WarDataset.createTempDirectory();
+        WarDataset dataset = WarDataset.create(shape, new File(workDirectory, "webapp"));
+        archive = new File(workDirectory, "webapp.war");
+        dataset.writeArchive(archive);
+        entryName = dataset.getEntryNames().get(dataset.getEntryNames().size() / 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        WarDataset.delete(workDirectory);
+    }
+
+    @Benchmark
+    public void getZipEntry(Blackhole blackhole) throws IOException {
+        blackhole.consume(StreamHelper.readAll(ZipHelper.getZipEntry(archive, entryName)));
+    }
+
+    @Benchmark
+    public void getZipEntryStreamed(Blackhole blackhole) throws IOException {
+        FileInputStream in = new FileInputStream(archive);
+        try {
+            blackhole.consume(StreamHelper.readAll(ZipHelper.getZipEntry(in, entryName)));
+        } finally {
+            in.close();
+        }
+    }
+}
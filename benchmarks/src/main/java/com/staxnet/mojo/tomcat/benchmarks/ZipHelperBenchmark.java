@@ -0,0 +1,98 @@
+package com.staxnet.mojo.tomcat.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.staxnet.mojo.tomcat.DefaultCompressionPolicy;
+import com.staxnet.mojo.tomcat.RawZipOutputStream;
+import com.staxnet.mojo.tomcat.ZipHelper;
+
+/**
+ * Packaging and extraction throughput of {@link ZipHelper} for each
+ * {@link WarDataset} shape, serially and with worker threads. Archives are
+ * written to a stream that discards them, so disk writes are not measured;
+ * extraction does write files. Looking up single entries is measured by
+ * {@link ZipEntryBenchmark}.
+ *
+ * Run with -prof gc to report the allocation rate alongside throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipHelperBenchmark {
+    @Param({ "classes", "jars", "compressible", "incompressible", "war" })
+    public String shape;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private File workDirectory;
+    private WarDataset dataset;
+    private File archive;
+    private File extractDirectory;
+
+    @Setup
+    public void setUp() throws IOException {
+        workDirectory = WarDataset.createTempDirectory();
+        dataset = WarDataset.create(shape, new File(workDirectory, "webapp"));
+        archive = new File(workDirectory, "webapp.war");
+        dataset.writeArchive(archive);
+        extractDirectory = new File(workDirectory, "extracted");
+    }
+
+    @TearDown
+    public void tearDown() {
+        WarDataset.delete(workDirectory);
+    }
+
+    @Benchmark
+    public long addFileToZip() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        RawZipOutputStream zos = new RawZipOutputStream(out);
+        ZipHelper.addFileToZip(dataset.getLargestFile(), "largest", zos, threads,
+                new DefaultCompressionPolicy());
+        zos.close();
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long addDirectoryToZip() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        RawZipOutputStream zos = new RawZipOutputStream(out);
+        if (threads > 1)
+            ZipHelper.addDirectoryToZip(dataset.getDirectory(), null, null, zos,
+                    new DefaultCompressionPolicy(), threads, 64L * 1024 * 1024);
+        else
+            ZipHelper.addDirectoryToZip(dataset.getDirectory(), null, null, zos,
+                    new DefaultCompressionPolicy());
+        zos.close();
+        return out.getCount();
+    }
+
+    @Benchmark
+    public void unzipFile() throws IOException {
+        if (threads > 1) {
+            ZipHelper.unzipFile(archive, extractDirectory, threads);
+        } else {
+            ZipHelper.unzipFile(new FileInputStream(archive), extractDirectory, true);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Uploads a deployment archive that is read from a stream rather than a file,
+ * so that it can be sent while it is still being produced.
+ */
+public interface ArchiveUploader
+{
+    /**
+     * Deploys the archive read from the stream.
+     *
+     * @param appId the fully-qualified application id
+     * @param environment the comma separated environments to apply
+     * @param message the deployment message, may be null
+     * @param archiveType "war" or "ear"
+     * @param archive the archive content
+     * @param length the archive length, or -1 if not known in advance
+     * @param listener notified of upload progress, may be null
+     * @return the URL of the deployed application
+     * @throws IOException
+     */
+    public String upload(String appId, String environment, String message,
+        String archiveType, InputStream archive, long length,
+        WriteListener listener) throws IOException;
+}
@@ -0,0 +1,272 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+/**
+ * Load tests the current project on the embedded Tomcat server. The server is
+ * started as bees:run would with bees.fork set, on a free port. Concurrent
+ * clients then request the configured URLs for a warmup period and a
+ * measured period. The throughput and latency percentiles are printed and
+ * written to a JSON file, and the goal fails if they miss the configured
+ * thresholds.
+ *
+ * <pre>
+ * mvn bees:bench -Dbees.bench.urls=/,/api/items -Dbees.bench.minThroughput=500 -Dbees.bench.maxP99=50
+ * </pre>
+ *
+ * @goal bench
+ * @execute phase = "compile"
+ * @requiresDependencyResolution runtime
+ */
+public class BenchMojo extends RunMojo
+{
+    /**
+     * The URLs to request, separated by commas or whitespace. Paths are
+     * resolved against the embedded server.
+     *
+     * @parameter expression="${bees.bench.urls}" default-value = "/"
+     */
+    private String urls;
+
+    /**
+     * The number of concurrent clients.
+     *
+     * @parameter expression="${bees.bench.concurrency}" default-value = "8"
+     */
+    private int concurrency;
+
+    /**
+     * The seconds of load before measuring starts.
+     *
+     * @parameter expression="${bees.bench.warmup}" default-value = "10"
+     */
+    private int warmup;
+
+    /**
+     * The seconds of load measured.
+     *
+     * @parameter expression="${bees.bench.duration}" default-value = "30"
+     */
+    private int duration;
+
+    /**
+     * The fewest requests per second the measured period may have.
+     *
+     * @parameter expression="${bees.bench.minThroughput}"
+     */
+    private String minThroughput;
+
+    /**
+     * The most milliseconds the median latency may be.
+     *
+     * @parameter expression="${bees.bench.maxP50}"
+     */
+    private String maxP50;
+
+    /**
+     * The most milliseconds the 99th percentile latency may be.
+     *
+     * @parameter expression="${bees.bench.maxP99}"
+     */
+    private String maxP99;
+
+    /**
+     * The highest percentage of requests that may fail.
+     *
+     * @parameter expression="${bees.bench.maxFailureRate}" default-value = "1"
+     */
+    private String maxFailureRate;
+
+    /**
+     * The seconds to wait for the server to start.
+     *
+     * @parameter expression="${bees.bench.startTimeout}" default-value = "300"
+     */
+    private int startTimeout;
+
+    /**
+     * Where the results are written as JSON.
+     *
+     * @parameter default-value = "${project.build.directory}/bees-bench.json"
+     */
+    private File results;
+
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        if (!isWar()) {
+            getLog().info(getMessage("RunMojo.nonWar"));
+            return;
+        }
+
+        Process server = null;
+        LoadGenerator load;
+        try {
+            setPort(getFreePort());
+            prepareServer();
+            server = startForked();
+            waitForServer(server);
+
+            List<URL> targets = getUrls();
+            if (System.getProperty("http.maxConnections") == null)
+                // keep a connection alive for every client
+                System.setProperty("http.maxConnections", String.valueOf(concurrency));
+            getLog().info(String.format(Locale.ROOT, "%d clients requesting %s: %d s warmup, %d s measured",
+                                                     concurrency, targets, warmup, duration));
+            load = new LoadGenerator(targets, concurrency, warmup * 1000L, duration * 1000L);
+            load.run();
+        } catch (MojoExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            if (server != null)
+                stopForked(server);
+        }
+
+        getLog().info(formatReport(load));
+        try {
+            writeResults(load);
+        } catch (IOException e) {
+            getLog().warn("could not write " + results + ": " + e);
+        }
+        checkThresholds(load);
+    }
+
+    private void waitForServer(Process server) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + startTimeout * 1000L;
+        while (!isListening(getPort())) {
+            try {
+                int exitCode = server.exitValue();
+                throw new MojoExecutionException("the server exited with status " + exitCode
+                                                 + " before accepting connections");
+            } catch (IllegalThreadStateException e) {
+                // still running
+            }
+            if (System.currentTimeMillis() > deadline)
+                throw new MojoExecutionException("the server did not accept connections within "
+                                                 + startTimeout + " s");
+            Thread.sleep(100);
+        }
+    }
+
+    private List<URL> getUrls() throws IOException
+    {
+        URL base = new URL("http://localhost:" + getPort() + "/");
+        List<URL> targets = new ArrayList<URL>();
+        for (String url : urls.trim().split("[,\\s]+")) {
+            if (!url.equals(""))
+                targets.add(new URL(base, url));
+        }
+        if (targets.isEmpty())
+            targets.add(base);
+        return targets;
+    }
+
+    private static int getFreePort() throws IOException
+    {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String formatReport(LoadGenerator load)
+    {
+        LatencyHistogram histogram = load.getHistogram();
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%d requests in %d s, %.1f requests/s, %d failed (%.2f%%)%n",
+                                                 load.getRequests(), duration, load.getThroughput(),
+                                                 load.getFailures(), load.getFailureRate()));
+        report.append(String.format(Locale.ROOT, "latency ms: min %s, mean %s, p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+                                                 millis(histogram.getMin()), millis((long) histogram.getMean()),
+                                                 millis(histogram.getValueAtPercentile(50)),
+                                                 millis(histogram.getValueAtPercentile(90)),
+                                                 millis(histogram.getValueAtPercentile(99)),
+                                                 millis(histogram.getValueAtPercentile(99.9)),
+                                                 millis(histogram.getMax())));
+        if (load.getLastFailure() != null)
+            report.append(String.format(Locale.ROOT, "%nlast failure: ")).append(load.getLastFailure());
+        return report.toString();
+    }
+
+    private void writeResults(LoadGenerator load) throws IOException
+    {
+        LatencyHistogram histogram = load.getHistogram();
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"concurrency\": ").append(concurrency).append(",\n");
+        json.append("  \"durationSeconds\": ").append(duration).append(",\n");
+        json.append("  \"requests\": ").append(load.getRequests()).append(",\n");
+        json.append("  \"failures\": ").append(load.getFailures()).append(",\n");
+        json.append("  \"requestsPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", load.getThroughput())).append(",\n");
+        json.append("  \"latencyMillis\": { \"min\": ").append(millis(histogram.getMin()))
+            .append(", \"p50\": ").append(millis(histogram.getValueAtPercentile(50)))
+            .append(", \"p90\": ").append(millis(histogram.getValueAtPercentile(90)))
+            .append(", \"p99\": ").append(millis(histogram.getValueAtPercentile(99)))
+            .append(", \"p999\": ").append(millis(histogram.getValueAtPercentile(99.9)))
+            .append(", \"max\": ").append(millis(histogram.getMax())).append(" }\n");
+        json.append("}\n");
+
+        File parent = results.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(results), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void checkThresholds(LoadGenerator load) throws MojoFailureException
+    {
+        LatencyHistogram histogram = load.getHistogram();
+        List<String> missed = new ArrayList<String>();
+        if (isSet(minThroughput) && load.getThroughput() < Double.parseDouble(minThroughput))
+            missed.add(String.format(Locale.ROOT, "throughput %.1f requests/s is below %s", load.getThroughput(),
+                                                  minThroughput));
+        if (isSet(maxP50) && histogram.getValueAtPercentile(50) > toMicros(maxP50))
+            missed.add("p50 latency " + millis(histogram.getValueAtPercentile(50)) + " ms is above "
+                       + maxP50 + " ms");
+        if (isSet(maxP99) && histogram.getValueAtPercentile(99) > toMicros(maxP99))
+            missed.add("p99 latency " + millis(histogram.getValueAtPercentile(99)) + " ms is above "
+                       + maxP99 + " ms");
+        if (isSet(maxFailureRate) && load.getFailureRate() > Double.parseDouble(maxFailureRate))
+            missed.add(String.format(Locale.ROOT, "%.2f%% of requests failed, more than %s%%", load.getFailureRate(),
+                                                  maxFailureRate));
+        if (load.getRequests() == 0)
+            missed.add("no request completed in the measured period");
+        if (!missed.isEmpty())
+            throw new MojoFailureException(this, "load test thresholds missed",
+                                           StringHelper.join(missed.toArray(new String[0]), "; "));
+    }
+
+    private static boolean isSet(String value)
+    {
+        return value != null && !value.trim().equals("");
+    }
+
+    private static long toMicros(String millis)
+    {
+        return Math.round(Double.parseDouble(millis) * 1000);
+    }
+
+    private static String millis(long micros)
+    {
+        return String.format(Locale.ROOT, "%.2f", micros / 1000.0);
+    }
+}
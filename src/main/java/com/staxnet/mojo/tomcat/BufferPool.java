@@ -0,0 +1,85 @@
+package com.staxnet.mojo.tomcat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of same-sized byte buffers shared by the stream and zip
+ * helpers. Each thread keeps its most recently released buffer, and up to
+ * maxPooled further buffers are shared between threads; anything beyond that
+ * is left to the garbage collector.
+ *
+ * The default pool's buffer size and capacity can be set with the
+ * bees.bufferSize and bees.bufferPoolSize system properties.
+ */
+public class BufferPool {
+    private static BufferPool defaultPool;
+
+    private int bufferSize;
+    private BlockingQueue<byte[]> shared;
+    private ThreadLocal<byte[]> local = new ThreadLocal<byte[]>();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.shared = new ArrayBlockingQueue<byte[]>(Math.max(1, maxPooled));
+    }
+
+    public static synchronized BufferPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new BufferPool(
+                    Integer.getInteger("bees.bufferSize", StreamHelper.BUFFER_SIZE),
+                    Integer.getInteger("bees.bufferPoolSize", 32));
+        }
+        return defaultPool;
+    }
+
+    public static synchronized void setDefault(BufferPool pool) {
+        defaultPool = pool;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none is free. The buffer
+     * should be handed back with {@link #release(byte[])} once it is no longer
+     * used.
+     *
+     * @return a buffer of {@link #getBufferSize()} bytes
+     */
+    public byte[] acquire() {
+        byte[] buffer = local.get();
+        if (buffer != null) {
+            local.set(null);
+        } else {
+            buffer = shared.poll();
+        }
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize)
+            return;
+        if (local.get() == null)
+            local.set(buffer);
+        else
+            shared.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
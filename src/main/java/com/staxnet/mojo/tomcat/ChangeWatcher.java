@@ -0,0 +1,182 @@
+package com.staxnet.mojo.tomcat;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Watches directory trees for changes on a daemon thread and reports them in
+ * batches: a burst of changes, such as a compile writing many class files, is
+ * reported once the directories have been quiet for the debounce interval, or
+ * at the latest after ten intervals if they never settle.
+ *
+ * Directories created in a watched tree are watched as well. If the watch
+ * service loses events, the whole tree is reported as changed.
+ */
+public class ChangeWatcher implements Runnable
+{
+    private static final int MAX_DEBOUNCE_INTERVALS = 10;
+
+    /**
+     * Receives each batch of changes.
+     */
+    public interface Listener
+    {
+        /**
+         * @param root the watched directory the files are in
+         * @param files the files created, modified or deleted
+         */
+        void filesChanged(File root, Set<File> files);
+    }
+
+    private Log log;
+    private WatchService watchService;
+    private Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+    private Map<Path, Path> roots = new ConcurrentHashMap<Path, Path>();
+    private long debounceMillis;
+    private Listener listener;
+    private Thread thread;
+
+    /**
+     * @param log where failures of the listener are reported
+     * @param debounceMillis how long the directories must be quiet before
+     *        changes are reported
+     * @param listener
+     * @throws IOException
+     */
+    public ChangeWatcher(Log log, long debounceMillis, Listener listener) throws IOException
+    {
+        this.log = log;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Watches a directory and everything below it. Missing directories are
+     * ignored.
+     *
+     * @param directory
+     * @throws IOException
+     */
+    public void addDirectory(File directory) throws IOException
+    {
+        if (directory == null || !directory.isDirectory())
+            return;
+        Path root = directory.getAbsoluteFile().toPath();
+        register(root, root);
+    }
+
+    public synchronized void start()
+    {
+        if (thread == null) {
+            thread = new DaemonThreadFactory("bees-watch").newThread(this);
+            thread.start();
+        }
+    }
+
+    public void stop()
+    {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // the thread exits either way
+        }
+    }
+
+    public void run()
+    {
+        try {
+            while (true) {
+                Map<Path, Set<File>> changes = new HashMap<Path, Set<File>>();
+                collect(watchService.take(), changes);
+                long deadline = System.currentTimeMillis() + debounceMillis * MAX_DEBOUNCE_INTERVALS;
+                WatchKey key;
+                while (System.currentTimeMillis() < deadline
+                       && (key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changes);
+                }
+                for (Map.Entry<Path, Set<File>> change : changes.entrySet()) {
+                    try {
+                        listener.filesChanged(change.getKey().toFile(), change.getValue());
+                    } catch (RuntimeException e) {
+                        // keep watching; the next change may succeed
+                        log.warn("could not act on the changes in " + change.getKey(), e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void collect(WatchKey key, Map<Path, Set<File>> changes)
+    {
+        Path directory = keys.get(key);
+        if (directory != null) {
+            Path root = roots.get(directory);
+            Set<File> files = changes.get(root);
+            if (files == null) {
+                files = new LinkedHashSet<File>();
+                changes.put(root, files);
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    files.add(root.toFile());
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                files.add(path.toFile());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                    try {
+                        register(path, root);
+                    } catch (IOException e) {
+                        // the directory went away again
+                    }
+                }
+            }
+        }
+        if (!key.reset())
+            keys.remove(key);
+    }
+
+    private void register(Path start, final Path root) throws IOException
+    {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException
+            {
+                WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                keys.put(key, dir);
+                roots.put(dir, root);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
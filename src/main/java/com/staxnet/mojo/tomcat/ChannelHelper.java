@@ -0,0 +1,168 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel based copies that avoid staging data in heap arrays. File sources
+ * use {@link FileChannel#transferTo} (sendfile/copy_file_range where the OS
+ * supports it), falling back to memory-mapped regions when a transfer makes no
+ * progress. Other channels are copied through a large direct buffer.
+ *
+ * Mapped regions are never unmapped explicitly, as Java has no supported way
+ * to do so: each stays mapped until its buffer is garbage collected. Until
+ * then it uses address space, and on Windows it keeps the file from being
+ * deleted or truncated.
+ */
+public class ChannelHelper {
+    public static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+    private static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Copies a file.
+     *
+     * @param source
+     * @param dest
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copyFile(File source, File dest) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(dest);
+            try {
+                return transfer(in.getChannel(), out.getChannel());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies a file to a channel, such as a socket.
+     *
+     * @param source
+     * @param dest
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long transfer(File source, WritableByteChannel dest) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            return transfer(in.getChannel(), dest);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the remainder of a file channel, from its current position, to
+     * another channel. The source position is advanced past the copied bytes
+     * as if they had been read.
+     *
+     * @param source
+     * @param dest
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long transfer(FileChannel source, WritableByteChannel dest) throws IOException {
+        long position = source.position();
+        long count = transfer(source, position, source.size() - position, dest);
+        source.position(position + count);
+        return count;
+    }
+
+    /**
+     * Copies a region of a file channel to another channel without changing
+     * the source position. If transferTo stops making progress, the rest is
+     * written from mapped regions of up to 64 MB each. Those regions remain
+     * mapped until they are garbage collected.
+     *
+     * @param source
+     * @param position
+     * @param count
+     * @param dest
+     * @return the number of bytes copied, which is less than count only if the
+     *         file is shorter than the requested region
+     * @throws IOException
+     */
+    public static long transfer(FileChannel source, long position, long count,
+            WritableByteChannel dest) throws IOException {
+        count = Math.max(0, Math.min(count, source.size() - position));
+        long done = 0;
+        while (done < count) {
+            long n = source.transferTo(position + done, count - done, dest);
+            if (n <= 0)
+                break;
+            done += n;
+        }
+        while (done < count) {
+            long length = Math.min(MAP_REGION_SIZE, count - done);
+            MappedByteBuffer region = source.map(FileChannel.MapMode.READ_ONLY,
+                    position + done, length);
+            while (region.hasRemaining())
+                dest.write(region);
+            done += length;
+        }
+        return done;
+    }
+
+    /**
+     * Copies a channel into a file channel at its current position. File
+     * sources are copied with {@link FileChannel#transferFrom}.
+     *
+     * @param source
+     * @param dest
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long transferFrom(ReadableByteChannel source, FileChannel dest) throws IOException {
+        if (source instanceof FileChannel) {
+            FileChannel file = (FileChannel) source;
+            long remaining = Math.max(0, file.size() - file.position());
+            long position = dest.position();
+            long done = 0;
+            while (done < remaining) {
+                long n = dest.transferFrom(file, position + done, remaining - done);
+                if (n <= 0)
+                    break;
+                done += n;
+            }
+            dest.position(position + done);
+            if (done < remaining)
+                done += copy(file, dest);
+            return done;
+        }
+        return copy(source, dest);
+    }
+
+    /**
+     * Copies a channel to another through a direct buffer until the source is
+     * exhausted.
+     *
+     * @param source
+     * @param dest
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(ReadableByteChannel source, WritableByteChannel dest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        long total = 0;
+        while (source.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                total += dest.write(buffer);
+            buffer.clear();
+        }
+        return total;
+    }
+}
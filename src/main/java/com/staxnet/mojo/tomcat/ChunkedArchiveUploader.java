@@ -0,0 +1,489 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Uploads a deployment archive as a series of parts sent in parallel over
+ * several pooled connections, so that a high-latency link is not limited to the
+ * throughput of a single TCP stream.
+ *
+ * The protocol is:
+ * <ol>
+ * <li>POST {uploadUrl}/uploads with the app_id and archive_type query
+ * parameters (and size, when known) starts an upload. The response body is
+ * the upload id.</li>
+ * <li>PUT {uploadUrl}/uploads/{id}/parts/{n} sends part n, counting from 0,
+ * with its SHA-1 in the X-Part-SHA1 header. The response body is the SHA-1
+ * of the part as received, which must match.</li>
+ * <li>POST {uploadUrl}/uploads/{id}/commit with the environment and message
+ * query parameters and a body listing "n sha1" for each part assembles and
+ * deploys the archive. The response body is the application URL.</li>
+ * </ol>
+ * A part that fails or arrives corrupted is sent again, up to three times. An
+ * upload that cannot be completed is abandoned with DELETE
+ * {uploadUrl}/uploads/{id}, unless it is checkpointed.
+ *
+ * With an {@link UploadCheckpoint} the confirmed parts are recorded as they
+ * complete. A later upload of the same archive asks the service which parts
+ * of the checkpointed upload it still has, with GET {uploadUrl}/uploads/{id}
+ * (one "n sha1" line per part), and sends only the rest.
+ *
+ * At most threads + 1 parts are held in memory at once. Parts of an archive
+ * read from a file are not held in memory but sent straight from the file's
+ * channel.
+ */
+public class ChunkedArchiveUploader implements ArchiveUploader
+{
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 4;
+    static final String PART_HASH_HEADER = "X-Part-SHA1";
+    private static final String PART_CONTENT_TYPE = "application/octet-stream";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    private String uploadUrl;
+    private String apikey;
+    private String secret;
+    private int partSize = DEFAULT_PART_SIZE;
+    private int threads = DEFAULT_THREADS;
+    private UploadCheckpoint checkpoint;
+    private String archiveHash;
+
+    public ChunkedArchiveUploader(String uploadUrl, String apikey, String secret)
+    {
+        this.uploadUrl = uploadUrl.endsWith("/") ? uploadUrl.substring(0, uploadUrl.length() - 1) : uploadUrl;
+        this.apikey = apikey;
+        this.secret = secret;
+    }
+
+    /**
+     * @param partSize the size of each part in bytes
+     */
+    public void setPartSize(int partSize)
+    {
+        this.partSize = Math.max(1, partSize);
+    }
+
+    /**
+     * @param threads the number of parts sent at the same time
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Records the upload's progress so that it can be continued if it is
+     * interrupted. Interrupted uploads are then left on the service rather
+     * than abandoned.
+     *
+     * @param checkpoint the checkpoint, or null to always start over
+     * @param archiveHash identifies the content of the archive being uploaded
+     */
+    public void setCheckpoint(UploadCheckpoint checkpoint, String archiveHash)
+    {
+        this.checkpoint = checkpoint;
+        this.archiveHash = archiveHash;
+    }
+
+    public String upload(String appId, String environment, String message,
+        String archiveType, InputStream archive, long length,
+        WriteListener listener) throws IOException
+    {
+        HttpClientHelper.ensureConnectionsPerHost(threads);
+        HttpClient client = HttpClientHelper.createClient();
+        client.getParams().setAuthenticationPreemptive(true);
+        client.getState().setCredentials(AuthScope.ANY,
+            new UsernamePasswordCredentials(apikey, secret));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+            new DaemonThreadFactory("bees-upload"));
+        Upload upload = null;
+        boolean committed = false;
+        try {
+            String description = archiveHash + "," + length + "," + partSize + ","
+                + uploadUrl + "," + appId + "," + archiveType;
+            upload = resume(client, description, length, listener);
+            if (upload == null)
+                upload = begin(client, description, appId, archiveType, length, listener);
+            List<String> hashes = upload.sendParts(archive, executor);
+            String url = upload.commit(environment, message, hashes);
+            committed = true;
+            if (checkpoint != null)
+                checkpoint.delete();
+            return url;
+        } finally {
+            executor.shutdownNow();
+            // let parts still in flight finish, so none is sent after an
+            // abort or after the upload has returned
+            try {
+                executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (upload != null && !committed && checkpoint == null)
+                upload.abort();
+        }
+    }
+
+    private Upload begin(HttpClient client, String description, String appId,
+        String archiveType, long length, WriteListener listener) throws IOException
+    {
+        PostMethod post = new PostMethod(uploadUrl + "/uploads");
+        List<NameValuePair> params = new ArrayList<NameValuePair>();
+        params.add(new NameValuePair("app_id", appId));
+        params.add(new NameValuePair("archive_type", archiveType));
+        params.add(new NameValuePair("part_size", String.valueOf(partSize)));
+        if (length >= 0)
+            params.add(new NameValuePair("size", String.valueOf(length)));
+        post.setQueryString(params.toArray(new NameValuePair[0]));
+        String id = execute(client, post);
+        if (id == null || id.length() == 0)
+            throw new IOException("upload service did not return an upload id");
+        if (checkpoint != null)
+            checkpoint.begin(description, id);
+        return new Upload(client, id, length, listener);
+    }
+
+    /**
+     * Continues the checkpointed upload, if it matches and the service still
+     * has it. Lines of the part listing that cannot be parsed are skipped, so
+     * the parts they describe are sent again.
+     *
+     * @return the upload, or null to start a new one
+     */
+    private Upload resume(HttpClient client, String description, long length,
+        WriteListener listener) throws IOException
+    {
+        if (checkpoint == null)
+            return null;
+        String id = checkpoint.getUploadId(description);
+        if (id == null)
+            return null;
+        Upload upload = new Upload(client, id, length, listener);
+        String parts;
+        try {
+            parts = execute(client, new GetMethod(upload.baseUrl));
+        } catch (IOException e) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new StringReader(parts == null ? "" : parts));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 2)
+                continue;
+            int number;
+            try {
+                number = Integer.parseInt(fields[0]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (fields[1].equalsIgnoreCase(checkpoint.getPartHash(number)))
+                upload.resumed.put(Integer.valueOf(number), fields[1]);
+        }
+        return upload;
+    }
+
+    /**
+     * Executes a request and returns its response body.
+     *
+     * @throws IOException if the request fails or the response is not 2xx
+     */
+    static String execute(HttpClient client, HttpMethodBase method) throws IOException
+    {
+        try {
+            int status = client.executeMethod(method);
+            String body = method.getResponseBodyAsString();
+            if (status < 200 || status >= 300)
+                throw new IOException("upload failed (HTTP " + status + "): " + body);
+            return body == null ? null : body.trim();
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    private class Upload
+    {
+        private HttpClient client;
+        private String baseUrl;
+        private long length;
+        private WriteListener listener;
+        private long sent = 0;
+        private volatile IOException failure;
+        private Map<Integer, String> resumed = new HashMap<Integer, String>();
+
+        Upload(HttpClient client, String id, long length, WriteListener listener)
+        {
+            this.client = client;
+            this.baseUrl = uploadUrl + "/uploads/" + id;
+            this.length = length;
+            this.listener = listener;
+        }
+
+        /**
+         * Reads the archive a part at a time and hands each part to the
+         * executor, waiting while threads + 1 parts are outstanding. A file
+         * archive is not read here; each task is given its region instead.
+         * Parts the service already has are skipped.
+         *
+         * @return the SHA-1 of each part, in order
+         */
+        List<String> sendParts(InputStream archive, ExecutorService executor) throws IOException
+        {
+            FileChannel file = archive instanceof FileInputStream
+                            ? ((FileInputStream) archive).getChannel() : null;
+            long position = file == null ? 0 : file.position();
+            Semaphore slots = new Semaphore(threads + 1);
+            List<Future<String>> parts = new ArrayList<Future<String>>();
+            for (int number = 0; ; number++) {
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while uploading", e);
+                }
+                if (failure != null)
+                    throw failure;
+                if (resumed.containsKey(Integer.valueOf(number))) {
+                    long size = checkpoint.getPartSize(number);
+                    if (file == null)
+                        skipPart(archive, size);
+                    else if (position + size > file.size())
+                        throw new IOException("archive is shorter than its upload checkpoint");
+                    position += size;
+                    slots.release();
+                    parts.add(null);
+                    partSent(size);
+                    continue;
+                }
+                if (file != null) {
+                    long size = Math.min(partSize, file.size() - position);
+                    if (size <= 0)
+                        break;
+                    parts.add(executor.submit(new PartTask(number, file, position, size, slots)));
+                    position += size;
+                    continue;
+                }
+                byte[] data = readPart(archive);
+                if (data == null)
+                    break;
+                parts.add(executor.submit(new PartTask(number, data, slots)));
+            }
+
+            List<String> hashes = new ArrayList<String>(parts.size());
+            for (int i = 0; i < parts.size(); i++) {
+                Future<String> part = parts.get(i);
+                hashes.add(part == null ? resumed.get(Integer.valueOf(i)) : await(part));
+            }
+            return hashes;
+        }
+
+        void sendPart(int number, RequestEntity data, String hash) throws IOException
+        {
+            PutMethod put = new PutMethod(baseUrl + "/parts/" + number);
+            put.setRequestHeader(PART_HASH_HEADER, hash);
+            put.setRequestEntity(data);
+            String received = execute(client, put);
+            if (!hash.equalsIgnoreCase(received))
+                throw new IOException("part " + number + " was corrupted in transit (sent "
+                                      + hash + ", received " + received + ")");
+        }
+
+        String commit(String environment, String message, List<String> hashes) throws IOException
+        {
+            StringBuilder manifest = new StringBuilder();
+            for (int i = 0; i < hashes.size(); i++)
+                manifest.append(i).append(' ').append(hashes.get(i)).append('\n');
+
+            PostMethod post = new PostMethod(baseUrl + "/commit");
+            List<NameValuePair> params = new ArrayList<NameValuePair>();
+            if (environment != null)
+                params.add(new NameValuePair("environment", environment));
+            if (message != null)
+                params.add(new NameValuePair("message", message));
+            post.setQueryString(params.toArray(new NameValuePair[0]));
+            post.setRequestEntity(new ByteArrayRequestEntity(
+                manifest.toString().getBytes("UTF-8"), "text/plain; charset=UTF-8"));
+            return execute(client, post);
+        }
+
+        void abort()
+        {
+            try {
+                execute(client, new DeleteMethod(baseUrl));
+            } catch (IOException e) {
+                // the service discards abandoned uploads eventually
+            }
+        }
+
+        private synchronized void partSent(long count)
+        {
+            sent += count;
+            if (listener != null)
+                listener.handleBytesWritten(count, sent, length);
+        }
+
+        private byte[] readPart(InputStream archive) throws IOException
+        {
+            byte[] data = new byte[partSize];
+            int count = 0;
+            int read;
+            while (count < data.length
+                   && -1 != (read = archive.read(data, count, data.length - count)))
+                count += read;
+            if (count == 0)
+                return null;
+            if (count == data.length)
+                return data;
+            byte[] last = new byte[count];
+            System.arraycopy(data, 0, last, 0, count);
+            return last;
+        }
+
+        private void skipPart(InputStream archive, long size) throws IOException
+        {
+            while (size > 0) {
+                long skipped = archive.skip(size);
+                if (skipped <= 0) {
+                    if (archive.read() == -1)
+                        throw new IOException("archive is shorter than its upload checkpoint");
+                    skipped = 1;
+                }
+                size -= skipped;
+            }
+        }
+
+        private String await(Future<String> part) throws IOException
+        {
+            try {
+                return part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while uploading", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException("upload failed", e.getCause());
+            }
+        }
+
+        /**
+         * Sends one part, held either in memory or as a region of the
+         * archive file. Progress is reported as the request body is written;
+         * a part that is sent again is only reported once it gets past what
+         * the earlier attempts wrote.
+         */
+        private class PartTask implements Callable<String>, WriteListener
+        {
+            private int number;
+            private byte[] data;
+            private FileChannel file;
+            private long position;
+            private long size;
+            private Semaphore slots;
+            private long reported = 0;
+
+            PartTask(int number, byte[] data, Semaphore slots)
+            {
+                this.number = number;
+                this.data = data;
+                this.size = data.length;
+                this.slots = slots;
+            }
+
+            PartTask(int number, FileChannel file, long position, long size, Semaphore slots)
+            {
+                this.number = number;
+                this.file = file;
+                this.position = position;
+                this.size = size;
+                this.slots = slots;
+            }
+
+            public String call() throws IOException
+            {
+                try {
+                    // a part queued before another one failed is not sent
+                    if (failure != null)
+                        throw failure;
+                    String hash = file != null ? StreamHelper.sha1(file, position, size)
+                                    : StreamHelper.sha1(new ByteArrayInputStream(data));
+                    for (int attempt = 1; ; attempt++) {
+                        try {
+                            sendPart(number, createEntity(), hash);
+                            break;
+                        } catch (IOException e) {
+                            if (attempt >= MAX_ATTEMPTS || failure != null)
+                                throw e;
+                        }
+                        try {
+                            Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("interrupted while uploading", e);
+                        }
+                    }
+                    if (checkpoint != null)
+                        checkpoint.confirmPart(number, hash, size);
+                    if (reported < size)
+                        partSent(size - reported);
+                    return hash;
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    data = null;
+                    slots.release();
+                }
+            }
+
+            public void handleBytesWritten(long deltaCount, long totalWritten, long totalToSend)
+            {
+                if (totalWritten > reported) {
+                    partSent(totalWritten - reported);
+                    reported = totalWritten;
+                }
+            }
+
+            private RequestEntity createEntity()
+            {
+                if (file != null)
+                    return new FileChannelRequestEntity(file, position, size, PART_CONTENT_TYPE, this);
+                return new InputStreamRequestEntity(new HttpStreamingUploader.ProgressInputStream(
+                    new ByteArrayInputStream(data), size, this), size, PART_CONTENT_TYPE);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Chooses the JVM options that make a forked server dump the classes it
+ * loads into a class data sharing archive on its first run and map them from
+ * the archive on later runs, instead of loading and verifying them again.
+ *
+ * Java 19 and later create and refresh the archive themselves. Java 13 to 18
+ * dump it when the JVM exits, and the archive is deleted here when the class
+ * path or Java version it was dumped for changes. Older JVMs cannot archive
+ * application classes dynamically, and no JVM archives classes loaded from
+ * directories, so without Java 13 or a class path of jars the server runs
+ * without an archive.
+ */
+public class ClassDataSharing
+{
+    private File archive;
+
+    /**
+     * @param archive the archive file
+     */
+    public ClassDataSharing(File archive)
+    {
+        this.archive = archive;
+    }
+
+    /**
+     * @param classpath the class path of the forked JVM
+     * @param log
+     * @return the JVM options, empty if this JVM cannot archive classes
+     * @throws IOException
+     */
+    public List<String> getJvmArgs(String classpath, Log log) throws IOException
+    {
+        int version = getJavaVersion();
+        if (version < 13) {
+            log.info("class data sharing needs Java 13 or later, running Java " + version);
+            return new ArrayList<String>();
+        }
+
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (new File(entry).isDirectory()) {
+                // the JVM only archives classes loaded from jars
+                log.info("class data sharing needs a class path of jars, " + entry + " is a directory");
+                return new ArrayList<String>();
+            }
+        }
+
+        File stampFile = new File(archive.getPath() + ".properties");
+        Properties stamp = new Properties();
+        stamp.setProperty("java.version", System.getProperty("java.version"));
+        stamp.setProperty("java.home", System.getProperty("java.home"));
+        stamp.setProperty("classpath", classpath);
+        if (!stamp.equals(load(stampFile))) {
+            // the JVM writes the archive read-only
+            archive.setWritable(true);
+            archive.delete();
+            save(stamp, stampFile);
+        }
+
+        String archiveOption = "-XX:SharedArchiveFile=" + archive.getAbsolutePath();
+        if (version >= 19) {
+            log.info((archive.exists() ? "using" : "creating") + " class data sharing archive " + archive);
+            return Arrays.asList("-XX:+AutoCreateSharedArchive", archiveOption);
+        }
+        if (archive.exists()) {
+            log.info("using class data sharing archive " + archive);
+            return Arrays.asList(archiveOption);
+        }
+        log.info("creating class data sharing archive " + archive + " when the server stops");
+        return Arrays.asList("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+    }
+
+    static int getJavaVersion()
+    {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1."))
+            version = version.substring(2);
+        int dot = version.indexOf('.');
+        return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+    }
+
+    private static Properties load(File file)
+    {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(file);
+                properties.load(fis);
+            } catch (IOException e) {
+                properties.clear();
+            } finally {
+                if (fis != null)
+                    StreamHelper.close(fis);
+            }
+        }
+        return properties;
+    }
+
+    private static void save(Properties properties, File file) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            properties.store(fos, "bees class data sharing archive");
+        } finally {
+            fos.close();
+        }
+    }
+}
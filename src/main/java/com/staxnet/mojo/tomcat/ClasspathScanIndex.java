@@ -0,0 +1,314 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Persistent index of what the servlet container would find when it scans
+ * the jars on the web application's class path: tag library descriptors,
+ * web-fragment.xml, ServletContainerInitializer services and classes with
+ * servlet annotations. Each jar is keyed by its path, size and modification
+ * time, so only new or changed jars are opened again.
+ */
+public class ClasspathScanIndex
+{
+    private static final String TLD = "tld";
+    private static final String FRAGMENT = "fragment";
+    private static final String INITIALIZER = "initializer";
+    private static final String ANNOTATIONS = "annotations";
+
+    /**
+     * Changed whenever a jar's entry would read differently, so entries saved
+     * by an older version are read again.
+     */
+    private static final String FORMAT = "2";
+
+    /**
+     * The annotations Tomcat 7 looks for in class files.
+     */
+    private static final byte[][] SERVLET_ANNOTATIONS = new byte[][] {
+        "Ljavax/servlet/annotation/WebServlet;".getBytes(),
+        "Ljavax/servlet/annotation/WebFilter;".getBytes(),
+        "Ljavax/servlet/annotation/WebListener;".getBytes() };
+    private static final String NONE = "none";
+
+    private static final int CLASS_MAGIC = 0xCAFEBABE;
+
+    private File indexFile;
+    private Properties cached = new Properties();
+    private Properties current = new Properties();
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * Creates an index backed by the given file, loading any previously saved
+     * entries. An unreadable index file is treated as empty.
+     *
+     * @param indexFile
+     */
+    public ClasspathScanIndex(File indexFile)
+    {
+        this.indexFile = indexFile;
+        if (indexFile.exists()) {
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(indexFile);
+                cached.load(fis);
+            } catch (IOException e) {
+                cached.clear();
+            } catch (IllegalArgumentException e) {
+                // a malformed escape in a damaged file
+                cached.clear();
+            } finally {
+                if (fis != null)
+                    StreamHelper.close(fis);
+            }
+        }
+    }
+
+    /**
+     * Gets what a jar contributes to the container's scan, reading the jar's
+     * directory only if it is not in the index.
+     *
+     * @param jar
+     * @return the scan result
+     * @throws IOException
+     */
+    public JarScan scan(File jar) throws IOException
+    {
+        String path = jar.getAbsolutePath();
+        String key = FORMAT + "," + jar.length() + "," + jar.lastModified() + ",";
+        String value = cached.getProperty(path);
+        JarScan scan;
+        if (value != null && value.startsWith(key)) {
+            scan = JarScan.parse(value.substring(key.length()));
+            hits++;
+        } else {
+            scan = JarScan.read(jar);
+            misses++;
+        }
+        current.setProperty(path, key + scan);
+        return scan;
+    }
+
+    /**
+     * Saves the jars seen since this index was loaded, dropping jars that are
+     * no longer on the class path.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException
+    {
+        File parent = indexFile.getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        FileOutputStream fos = new FileOutputStream(indexFile);
+        try {
+            current.store(fos, "bees class path scan index");
+        } finally {
+            fos.close();
+        }
+    }
+
+    public int getHits()
+    {
+        return hits;
+    }
+
+    public int getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * What one jar contributes to the container's scan.
+     */
+    public static class JarScan
+    {
+        private boolean tlds;
+        private boolean webFragment;
+        private boolean initializer;
+        private boolean annotations;
+
+        static JarScan read(File jar) throws IOException
+        {
+            JarScan scan = new JarScan();
+            ZipFile zip = new ZipFile(jar);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (name.endsWith(".class")) {
+                        if (!scan.annotations)
+                            scan.annotations = hasServletAnnotation(zip, entry);
+                        continue;
+                    }
+                    if (!name.startsWith("META-INF/"))
+                        continue;
+                    if (name.endsWith(".tld"))
+                        scan.tlds = true;
+                    else if (name.equals("META-INF/web-fragment.xml"))
+                        scan.webFragment = true;
+                    else if (name.equals("META-INF/services/javax.servlet.ServletContainerInitializer"))
+                        scan.initializer = true;
+                }
+            } finally {
+                zip.close();
+            }
+            return scan;
+        }
+
+        /**
+         * Looks for the annotations' type descriptors among the class file's
+         * constant pool strings. Only the constant pool is read, not the rest
+         * of the class. A constant pool that cannot be read is taken to hold
+         * the annotations, so the jar is still scanned.
+         */
+        private static boolean hasServletAnnotation(ZipFile zip, ZipEntry entry) throws IOException
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(zip.getInputStream(entry)));
+            try {
+                if (in.readInt() != CLASS_MAGIC)
+                    return false;
+                in.readUnsignedShort(); // minor version
+                in.readUnsignedShort(); // major version
+                int count = in.readUnsignedShort();
+                for (int i = 1; i < count; i++) {
+                    int tag = in.readUnsignedByte();
+                    switch (tag) {
+                    case 1: // Utf8
+                        int length = in.readUnsignedShort();
+                        if (isServletAnnotation(in, length))
+                            return true;
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        in.skipBytes(2);
+                        break;
+                    case 15: // MethodHandle
+                        in.skipBytes(3);
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        in.skipBytes(4);
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        in.skipBytes(8);
+                        i++;
+                        break;
+                    default:
+                        return true;
+                    }
+                }
+                return false;
+            } catch (EOFException e) {
+                return true;
+            } finally {
+                in.close();
+            }
+        }
+
+        private static boolean isServletAnnotation(DataInputStream in, int length) throws IOException
+        {
+            if (length != SERVLET_ANNOTATIONS[0].length && length != SERVLET_ANNOTATIONS[1].length
+                && length != SERVLET_ANNOTATIONS[2].length) {
+                in.skipBytes(length);
+                return false;
+            }
+            byte[] value = new byte[length];
+            in.readFully(value);
+            for (byte[] annotation : SERVLET_ANNOTATIONS) {
+                if (Arrays.equals(value, annotation))
+                    return true;
+            }
+            return false;
+        }
+
+        static JarScan parse(String value)
+        {
+            JarScan scan = new JarScan();
+            for (String flag : value.split("\\+")) {
+                if (flag.equals(TLD))
+                    scan.tlds = true;
+                else if (flag.equals(FRAGMENT))
+                    scan.webFragment = true;
+                else if (flag.equals(INITIALIZER))
+                    scan.initializer = true;
+                else if (flag.equals(ANNOTATIONS))
+                    scan.annotations = true;
+            }
+            return scan;
+        }
+
+        public boolean hasTlds()
+        {
+            return tlds;
+        }
+
+        public boolean hasWebFragment()
+        {
+            return webFragment;
+        }
+
+        public boolean hasInitializer()
+        {
+            return initializer;
+        }
+
+        /**
+         * @return whether a class in the jar is annotated with WebServlet,
+         *         WebFilter or WebListener
+         */
+        public boolean hasServletAnnotations()
+        {
+            return annotations;
+        }
+
+        /**
+         * @return whether the container finds nothing in the jar
+         */
+        public boolean isSkippable()
+        {
+            return !tlds && !webFragment && !initializer && !annotations;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder flags = new StringBuilder();
+            if (tlds)
+                flags.append(TLD).append('+');
+            if (webFragment)
+                flags.append(FRAGMENT).append('+');
+            if (initializer)
+                flags.append(INITIALIZER).append('+');
+            if (annotations)
+                flags.append(ANNOTATIONS).append('+');
+            if (flags.length() == 0)
+                return NONE;
+            flags.setLength(flags.length() - 1);
+            return flags.toString();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * On-disk cache of raw deflated file contents, so that files which have not
+ * changed since the last packaging run can be copied into a new archive
+ * without being compressed again. Entries are keyed by the source file's path,
+ * size and modification time and by the compression level; each payload is
+ * kept in its own file next to an index.
+ *
+ * The cache is safe to use from several packaging threads at once.
+ */
+public class CompressedEntryCache {
+    private static final String INDEX = "index.properties";
+    private static final String SUFFIX = ".deflate";
+
+    private File directory;
+    private Properties index = new Properties();
+    private Set<String> used = new HashSet<String>();
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * Opens the cache stored in the given directory, creating it if needed.
+     * An unreadable index is treated as empty.
+     *
+     * @param directory
+     */
+    public CompressedEntryCache(File directory) {
+        this.directory = directory;
+        File indexFile = new File(directory, INDEX);
+        if (indexFile.exists()) {
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(indexFile);
+                index.load(fis);
+            } catch (IOException e) {
+                index.clear();
+            } finally {
+                if (fis != null)
+                    StreamHelper.close(fis);
+            }
+        }
+    }
+
+    /**
+     * Looks up the cached payload for a file.
+     *
+     * @param file
+     * @param entryName
+     *            the name to give the returned entry
+     * @param level
+     *            the compression level the payload must have been made with
+     * @return a zip entry with its crc and sizes set, ready for
+     *         {@link RawZipOutputStream#putRawEntry(ZipEntry)}, or null if the
+     *         file is not cached or has changed
+     */
+    public synchronized ZipEntry lookup(File file, String entryName, int level) {
+        String key = getKey(file);
+        String value = index.getProperty(key);
+        String prefix = describe(file, level);
+        if (value == null || !value.startsWith(prefix)) {
+            misses++;
+            return null;
+        }
+        String[] parts = value.substring(prefix.length()).split(",");
+        ZipEntry entry = new ZipEntry(entryName);
+        entry.setTime(file.lastModified());
+        entry.setCrc(Long.parseLong(parts[0]));
+        entry.setSize(Long.parseLong(parts[1]));
+        entry.setCompressedSize(Long.parseLong(parts[2]));
+        if (getPayloadFile(key).length() != entry.getCompressedSize()) {
+            misses++;
+            return null;
+        }
+        used.add(key);
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Copies the payload of an entry returned by
+     * {@link #lookup(File, String, int)} to the archive.
+     *
+     * @param file
+     * @param entry
+     * @param zos
+     * @throws IOException
+     */
+    public void writeCached(File file, ZipEntry entry, RawZipOutputStream zos) throws IOException {
+        zos.putRawEntry(entry);
+        FileInputStream in = new FileInputStream(getPayloadFile(getKey(file)));
+        try {
+            StreamHelper.transferStream(in, zos);
+        } finally {
+            in.close();
+        }
+        zos.closeEntry();
+    }
+
+    /**
+     * Reads the payload of an entry returned by
+     * {@link #lookup(File, String, int)}.
+     *
+     * @param file
+     * @return the raw deflated data
+     * @throws IOException
+     */
+    public byte[] readCached(File file) throws IOException {
+        FileInputStream in = new FileInputStream(getPayloadFile(getKey(file)));
+        try {
+            return StreamHelper.readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens a stream for writing a file's payload. The entry must be
+     * registered with {@link #commit(File, int, long, long, long)} once the
+     * stream has been closed.
+     *
+     * @param file
+     * @return the payload stream
+     * @throws IOException
+     */
+    public OutputStream openPayload(File file) throws IOException {
+        if (!directory.exists())
+            directory.mkdirs();
+        String key = getKey(file);
+        synchronized (this) {
+            index.remove(key);
+        }
+        return new FileOutputStream(getPayloadFile(key));
+    }
+
+    /**
+     * Stores a file's payload.
+     *
+     * @param file
+     * @param level
+     * @param crc
+     * @param size
+     * @param data
+     *            the raw deflated data
+     * @throws IOException
+     */
+    public void store(File file, int level, long crc, long size, byte[] data) throws IOException {
+        OutputStream out = openPayload(file);
+        try {
+            StreamHelper.transferStream(new ByteArrayInputStream(data), out);
+        } finally {
+            out.close();
+        }
+        commit(file, level, crc, size, data.length);
+    }
+
+    /**
+     * Registers a payload written through {@link #openPayload(File)}.
+     *
+     * @param file
+     * @param level
+     * @param crc
+     * @param size
+     * @param compressedSize
+     */
+    public synchronized void commit(File file, int level, long crc, long size, long compressedSize) {
+        String key = getKey(file);
+        index.setProperty(key, describe(file, level) + crc + "," + size + "," + compressedSize);
+        used.add(key);
+    }
+
+    /**
+     * Saves the index, dropping entries that were not used since the cache
+     * was opened along with their payloads.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        for (Object key : new HashSet<Object>(index.keySet())) {
+            if (!used.contains(key)) {
+                index.remove(key);
+                getPayloadFile((String) key).delete();
+            }
+        }
+        if (!directory.exists())
+            directory.mkdirs();
+        FileOutputStream fos = new FileOutputStream(new File(directory, INDEX));
+        try {
+            index.store(fos, "bees compressed entry cache");
+        } finally {
+            fos.close();
+        }
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private File getPayloadFile(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    private static String getKey(File file) {
+        try {
+            return StreamHelper.sha1(new ByteArrayInputStream(file.getAbsolutePath()
+                    .getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String describe(File file, int level) {
+        return file.length() + "," + file.lastModified() + "," + level + ",";
+    }
+}
@@ -0,0 +1,22 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides how each entry of a deployment package is compressed.
+ */
+public interface CompressionPolicy
+{
+    /**
+     * Gets the compression level for an entry.
+     * 
+     * @param entryName the name of the entry in the archive
+     * @param file the file providing the entry's content
+     * @return the deflate level to use, or
+     *         {@link java.util.zip.Deflater#NO_COMPRESSION} to store the entry
+     *         uncompressed
+     * @throws IOException
+     */
+    public int getLevel(String entryName, File file) throws IOException;
+}
@@ -0,0 +1,53 @@
+package com.staxnet.mojo.tomcat;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+/**
+ * Reloads the web application contexts of the embedded Tomcat through the
+ * MBeans Tomcat registers for them. A reload stops the context, discards its
+ * class loader and starts it again with the current classes, while the
+ * server, its connectors and the JVM keep running.
+ */
+public class ContextReloader
+{
+    private static final String WEB_MODULES = "*:j2eeType=WebModule,*";
+
+    /**
+     * Reloads every web application context in this JVM.
+     *
+     * @return the names of the contexts reloaded, empty if none were found
+     * @throws JMException if a context failed to reload
+     */
+    public List<String> reloadAll() throws JMException
+    {
+        List<String> reloaded = new ArrayList<String>();
+        for (MBeanServer server : getMBeanServers()) {
+            for (ObjectName name : server.queryNames(new ObjectName(WEB_MODULES), null)) {
+                server.invoke(name, "reload", new Object[0], new String[0]);
+                reloaded.add(name.getKeyProperty("name"));
+            }
+        }
+        return reloaded;
+    }
+
+    /**
+     * Tomcat registers with the first MBean server it finds, falling back to
+     * the platform server.
+     */
+    private Set<MBeanServer> getMBeanServers()
+    {
+        Set<MBeanServer> servers = new LinkedHashSet<MBeanServer>();
+        servers.addAll(MBeanServerFactory.findMBeanServer(null));
+        servers.add(ManagementFactory.getPlatformMBeanServer());
+        return servers;
+    }
+}
@@ -0,0 +1,23 @@
+package com.staxnet.mojo.tomcat;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the helpers' worker pools, so an abandoned
+ * pool never keeps the build JVM alive.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    private String name;
+    private AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
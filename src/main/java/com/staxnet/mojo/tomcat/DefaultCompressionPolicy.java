@@ -0,0 +1,161 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Stores entries that are already compressed and deflates everything else.
+ * An entry is treated as compressed when its extension or leading magic bytes
+ * identify a compressed format, or when the entropy of a few samples taken
+ * across the file is close to 8 bits per byte. Archives that look compressed
+ * but sample as low entropy (e.g. jars built with stored entries) are still
+ * deflated.
+ */
+public class DefaultCompressionPolicy implements CompressionPolicy
+{
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(
+        Arrays.asList(new String[] { "jar", "war", "ear", "zip", "gz", "tgz",
+            "bz2", "xz", "7z", "png", "jpg", "jpeg", "gif", "webp", "ico",
+            "mp3", "mp4", "ogg", "woff", "woff2", "pdf" }));
+
+    private static final byte[][] COMPRESSED_MAGIC = new byte[][] {
+        { 'P', 'K', 3, 4 }, // zip, jar, war
+        { (byte) 0x1f, (byte) 0x8b }, // gzip
+        { (byte) 0x89, 'P', 'N', 'G' },
+        { (byte) 0xff, (byte) 0xd8, (byte) 0xff }, // jpeg
+        { 'G', 'I', 'F', '8' },
+        { 'B', 'Z', 'h' },
+        { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 },
+        { '7', 'z', (byte) 0xbc, (byte) 0xaf, (byte) 0x27, (byte) 0x1c },
+        { 'w', 'O', 'F', '2' } };
+
+    private static final int SAMPLE_COUNT = 4;
+    private static final int SAMPLE_SIZE = 8192;
+
+    private int level;
+    private double storeEntropy;
+    private double compressedFormatEntropy;
+    private long minSize;
+
+    public DefaultCompressionPolicy()
+    {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level the deflate level used for compressible entries
+     */
+    public DefaultCompressionPolicy(int level)
+    {
+        this(level, 7.5, 6.0, 512);
+    }
+
+    /**
+     * @param level the deflate level used for compressible entries
+     * @param storeEntropy entries sampling above this many bits per byte are
+     *            stored
+     * @param compressedFormatEntropy entries in a compressed format are stored
+     *            unless they sample below this many bits per byte
+     * @param minSize entries smaller than this are always deflated
+     */
+    public DefaultCompressionPolicy(int level, double storeEntropy,
+        double compressedFormatEntropy, long minSize)
+    {
+        this.level = level;
+        this.storeEntropy = storeEntropy;
+        this.compressedFormatEntropy = compressedFormatEntropy;
+        this.minSize = minSize;
+    }
+
+    public int getLevel(String entryName, File file) throws IOException
+    {
+        long length = file.length();
+        if (length == 0)
+            return Deflater.NO_COMPRESSION;
+        if (length < minSize)
+            return level;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            int[] counts = new int[256];
+            byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, length)];
+            int head = readSample(raf, 0, sample, counts);
+            boolean compressedFormat =
+                hasCompressedExtension(entryName) || hasCompressedMagic(sample, head);
+
+            long total = head;
+            long stride = length / SAMPLE_COUNT;
+            for (int i = 1; i < SAMPLE_COUNT && stride > sample.length; i++) {
+                total += readSample(raf, i * stride, sample, counts);
+            }
+
+            double entropy = entropy(counts, total);
+            if (compressedFormat)
+                return entropy < compressedFormatEntropy ? level : Deflater.NO_COMPRESSION;
+            return entropy > storeEntropy ? Deflater.NO_COMPRESSION : level;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int readSample(RandomAccessFile raf, long offset,
+        byte[] sample, int[] counts) throws IOException
+    {
+        raf.seek(offset);
+        int filled = 0;
+        int read;
+        while (filled < sample.length &&
+            -1 != (read = raf.read(sample, filled, sample.length - filled)))
+        {
+            filled += read;
+        }
+        for (int i = 0; i < filled; i++)
+            counts[sample[i] & 0xff]++;
+        return filled;
+    }
+
+    private static boolean hasCompressedExtension(String entryName)
+    {
+        int dot = entryName.lastIndexOf('.');
+        if (dot == -1 || dot < entryName.lastIndexOf('/'))
+            return false;
+        return COMPRESSED_EXTENSIONS.contains(entryName.substring(dot + 1)
+            .toLowerCase());
+    }
+
+    private static boolean hasCompressedMagic(byte[] header, int length)
+    {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (length < magic.length)
+                continue;
+            boolean match = true;
+            for (int i = 0; i < magic.length && match; i++)
+                match = header[i] == magic[i];
+            if (match)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Shannon entropy of the sampled bytes, in bits per byte.
+     */
+    static double entropy(int[] counts, long total)
+    {
+        if (total == 0)
+            return 0;
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
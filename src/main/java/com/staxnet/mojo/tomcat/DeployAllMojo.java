@@ -0,0 +1,85 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Deploys every WAR module of a reactor build to the Stax service, several at
+ * a time. Each module is packaged and uploaded as bees:deploy would, using
+ * the module's bees.appid property or its deployment descriptor for the app
+ * id. A module that fails to deploy does not stop the others; the goal fails
+ * at the end if any of them did.
+ *
+ * @goal deploy-all
+ * @aggregator
+ * @execute phase = "package"
+ * @requiresDependencyResolution runtime
+ */
+public class DeployAllMojo extends DeployMojo
+{
+    /**
+     * The projects of the reactor build.
+     *
+     * @parameter expression="${reactorProjects}"
+     * @required
+     * @readonly
+     */
+    private List<MavenProject> reactorProjects;
+
+    /**
+     * The build directory of the project the goal was run from.
+     *
+     * @parameter default-value = "${project.build.directory}"
+     * @required
+     * @readonly
+     */
+    private File buildDirectory;
+
+    /**
+     * Number of applications deployed at the same time.
+     *
+     * @parameter expression="${bees.deployThreads}" default-value = "4"
+     */
+    private String deployThreads;
+
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        Properties properties = getConfigProperties();
+        initParameters(properties);
+        deployThreads = getSysProperty("bees.deployThreads", deployThreads);
+        try {
+            // ask for credentials once, before the modules copy them
+            initCredentials();
+        } catch (IOException e) {
+            throw new MojoExecutionException("could not read credentials", e);
+        }
+
+        List<DeployMojo> modules = new ArrayList<DeployMojo>();
+        List<String> names = new ArrayList<String>();
+        for (MavenProject project : reactorProjects) {
+            if ("war".equals(project.getPackaging())) {
+                modules.add(forProject(project, buildDirectory));
+                names.add(project.getArtifactId());
+            }
+        }
+        if (modules.isEmpty()) {
+            getLog().info(getMessage("RunMojo.nonWar"));
+            return;
+        }
+
+        int threads = deployThreads == null || deployThreads.equals("") ? 4
+                        : Integer.parseInt(deployThreads);
+        try {
+            deployConcurrently(modules, names, threads, properties, true);
+        } finally {
+            HttpClientHelper.shutdown();
+        }
+    }
+}
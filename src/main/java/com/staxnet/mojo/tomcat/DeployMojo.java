@@ -5,24 +5,32 @@ package com.staxnet.mojo.tomcat;
 //       http://www.apache.org/licenses/LICENSE-2.0 
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import com.cloudbees.api.ApplicationDeployArchiveResponse;
 import com.cloudbees.api.BeesClient;
 import com.cloudbees.api.BeesClientConfiguration;
-import com.cloudbees.api.HashWriteProgress;
 
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.model.Plugin;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
 
 import com.staxnet.appserver.config.AppConfig;
 import com.staxnet.appserver.config.AppConfigHelper;
-import com.staxnet.appserver.utils.ZipHelper;
-import com.staxnet.appserver.utils.ZipHelper.ZipEntryHandler;
 
 /**
  * Deploys the current project package to the Stax service.
@@ -34,6 +42,12 @@ import com.staxnet.appserver.utils.ZipHelper.ZipEntryHandler;
  */
 public class DeployMojo extends AbstractI18NMojo
 {
+    /**
+     * The artifact id of this plugin, used to find its configuration in the
+     * modules of a reactor build.
+     */
+    private static final String PLUGIN_ARTIFACT_ID = "bees-maven-plugin";
+
     // ----------------------------------------------------------------------
     // Mojo Parameters
     // ----------------------------------------------------------------------
@@ -146,6 +160,105 @@ public class DeployMojo extends AbstractI18NMojo
      */
     private String delta;
 
+    /**
+     * Rebuild the deployment package even if its inputs are unchanged since
+     * it was last built.
+     *
+     * @parameter expression="${bees.forcePackage}" default-value = "false"
+     */
+    private String forcePackage;
+
+    /**
+     * Include a hash of each input's content in the package fingerprint,
+     * rather than relying on file sizes and modification times alone.
+     *
+     * @parameter expression="${bees.fingerprintContent}" default-value = "false"
+     */
+    private String fingerprintContent;
+
+    /**
+     * Package and upload at the same time, without writing stax-deploy.zip.
+     * Requires bees.uploadUrl.
+     *
+     * @parameter expression="${bees.pipeline}" default-value = "false"
+     */
+    private String pipeline;
+
+    /**
+     * The archive upload service. When set, the archive is sent to it instead
+     * of through the API (delta deployments are not supported).
+     *
+     * @parameter expression="${bees.uploadUrl}"
+     */
+    private String uploadUrl;
+
+    /**
+     * Number of parts of the archive sent to bees.uploadUrl at the same time.
+     * With 1 the archive is sent as a single request.
+     *
+     * @parameter expression="${bees.uploadThreads}" default-value = "4"
+     */
+    private String uploadThreads;
+
+    /**
+     * Size in megabytes of each part sent to bees.uploadUrl.
+     *
+     * @parameter expression="${bees.uploadPartSize}" default-value = "8"
+     */
+    private String uploadPartSize;
+
+    /**
+     * Records which parts of an upload to bees.uploadUrl have been confirmed,
+     * so that an interrupted upload of the same archive continues where it
+     * stopped.
+     *
+     * @parameter expression="${bees.uploadCheckpoint}" default-value = "${project.build.directory}/bees-upload.checkpoint"
+     */
+    private File uploadCheckpoint;
+
+    /**
+     * JSON summary of the last upload's throughput, for tracking upload
+     * performance over time.
+     *
+     * @parameter expression="${bees.uploadMetrics}" default-value = "${project.build.directory}/bees-upload-metrics.json"
+     */
+    private File uploadMetrics;
+
+    /**
+     * Deploy the package to several applications at once instead of the one
+     * given by bees.appid: a list of app ids separated by ';' or whitespace,
+     * each optionally followed by '@' and its environments, e.g.
+     * "acme/app-staging@staging; acme/app-canary@prod,canary". Targets
+     * without environments use bees.environment. The package is built once.
+     * With bees.uploadUrl its hash, which identifies resumable uploads, is
+     * also computed once; deployments through the API each compute their own
+     * delta against the application.
+     *
+     * @parameter expression="${bees.targets}"
+     */
+    private String targets;
+
+    /**
+     * Whether the user can be asked for missing settings.
+     */
+    private boolean interactive = true;
+
+    /**
+     * The SHA-1 of the deployment package, once computed.
+     */
+    private String archiveHash;
+
+    /**
+     * The URL of the application once deployed.
+     */
+    private String deployedUrl;
+
+    /**
+     * Whether packaging logs its use of the buffer pool. Modules packaged at
+     * the same time share the pool, so their use is logged together.
+     */
+    private boolean logBufferPool = true;
+
     /**
      * Bees http proxyHost.
      * @parameter expression="${bees.proxyHost}"
@@ -176,6 +289,53 @@ public class DeployMojo extends AbstractI18NMojo
      */
     private String containerType;
 
+    /**
+     * Number of threads used to compress the deployment package. Defaults to
+     * the number of available processors.
+     * @parameter expression="${bees.packageThreads}"
+     */
+    private String packageThreads;
+
+    /**
+     * How entries of the deployment package are compressed: "auto" stores
+     * entries that are already compressed and deflates the rest, "deflate"
+     * deflates everything, or the class name of a CompressionPolicy.
+     * @parameter expression="${bees.compression}" default-value = "auto"
+     */
+    private String compression;
+
+    /**
+     * Keep the deflated contents of the package's entries between builds, so
+     * that an entry whose file has not changed is copied into the package
+     * instead of being compressed again. Only entries the compression policy
+     * deflates are kept.
+     * @parameter expression="${bees.entryCache}" default-value = "false"
+     */
+    private String entryCache;
+
+    /**
+     * Where bees.entryCache keeps the deflated entries.
+     * @parameter expression="${bees.entryCacheDirectory}" default-value = "${project.build.directory}/bees-entry-cache"
+     */
+    private File entryCacheDirectory;
+
+    /**
+     * An exploded web application to deploy instead of the packaged war file,
+     * for example the war plugin's
+     * ${project.build.directory}/${project.build.finalName}. It is packaged
+     * into stax-webapp.war next to the deployment package, on
+     * bees.packageThreads threads.
+     * @parameter expression="${bees.webappDirectory}"
+     */
+    private File webappDirectory;
+
+    /**
+     * Megabytes of file content and compressed data held in memory ahead of
+     * the writer while bees.webappDirectory is packaged.
+     * @parameter expression="${bees.packageMemory}" default-value = "64"
+     */
+    private String packageMemory;
+
     /**
      * Gets whether this project uses WAR packaging.
      * 
@@ -197,24 +357,62 @@ public class DeployMojo extends AbstractI18NMojo
         // from the command line)
         initParameters(properties);
 
+        try {
+            deploy(properties);
+        } finally {
+            HttpClientHelper.shutdown();
+        }
+    }
+
+    /**
+     * Packages and deploys the project with parameters that have been
+     * initialized.
+     */
+    void deploy(Properties properties) throws MojoExecutionException, MojoFailureException
+    {
         // ensure project is a web application
         if (!isWar()) {
             getLog().info(getMessage("RunMojo.nonWar"));
             return;
         }
+
+        if (webappDirectory != null) {
+            try {
+                warFile = packageWebapp(webappDirectory);
+            } catch (Exception e) {
+                throw new MojoFailureException(
+                                               this,
+                                               getMessage("StaxMojo.packageFailed"),
+                                               e.getMessage());
+            }
+        }
         
+        if (isPipeline()) {
+            if (targets != null && !targets.trim().equals(""))
+                throw new MojoExecutionException("bees.targets cannot be used with pipelined deployments");
+            deployPipelined(properties, appConfig.exists() && appxml.exists());
+            return;
+        }
+
         // create the deployment package
         if(appConfig.exists() && appxml.exists())
         {
-            FileOutputStream fstream = null;
             try {
-                fstream = new FileOutputStream(deployFile);
-                ZipOutputStream zos = new ZipOutputStream(fstream);
-                ZipHelper.addFileToZip(warFile, "webapp.war", zos);
-                ZipHelper.addFileToZip(appConfig,
-                                       "META-INF/stax-application.xml", zos);
-                ZipHelper.addFileToZip(appxml, "META-INF/application.xml", zos);
-                zos.close();
+                File fingerprintFile = new File(deployFile.getPath() + ".fingerprint");
+                PackageFingerprint fingerprint = getPackageFingerprint();
+                if (!isForcePackage() && fingerprint.matches(fingerprintFile, deployFile)) {
+                    getLog().info("Deployment package is up to date: " + deployFile);
+                } else {
+                    fingerprintFile.delete();
+                    BufferPool pool = BufferPool.getDefault();
+                    long hits = pool.getHits();
+                    long misses = pool.getMisses();
+                    createDeployPackage();
+                    fingerprint.save(fingerprintFile, deployFile);
+                    if (logBufferPool)
+                        getLog().debug(String.format("packaging buffer pool: %d hits, %d misses",
+                                                     pool.getHits() - hits, pool.getMisses() - misses));
+                }
             } catch (Exception e) {
                 throw new MojoFailureException(
                                                this,
@@ -227,6 +425,18 @@ public class DeployMojo extends AbstractI18NMojo
             deployFile = warFile;
         }
 
+        if (targets != null && !targets.trim().equals("")) {
+            deployToTargets(properties);
+            return;
+        }
+        deployPackage(properties);
+    }
+
+    /**
+     * Deploys the package that has been created.
+     */
+    private void deployPackage(Properties properties) throws MojoFailureException
+    {
         // deploy the application to the server
         try {
             initCredentials();
@@ -237,21 +447,7 @@ public class DeployMojo extends AbstractI18NMojo
                              ApplicationHelper.getEnvironmentList(environment),
                              new String[] { "deploy" });
             initAppId(appConfig);
-
-            String defaultAppDomain = properties.getProperty("bees.project.app.domain");
-            String[] appIdParts = appid.split("/");
-            String domain = null;
-            if (appIdParts.length > 1) {
-                domain = appIdParts[0];
-            } else if (defaultAppDomain != null &&
-                       !defaultAppDomain.equals(""))
-            {
-                domain = defaultAppDomain;
-                appid = domain + "/" + appid;
-            } else {
-                throw new MojoExecutionException(
-                                         "default app domain could not be determined, appid needs to be fully-qualified ");
-            }
+            initAppDomain(properties);
             
             environment = StringHelper.join(appConfig.getAppliedEnvironments()
                                             .toArray(new String[0]), ",");
@@ -275,16 +471,45 @@ public class DeployMojo extends AbstractI18NMojo
 
             String archiveType = deployFile.getName().endsWith(".war") ? "war" : "ear";
 
+            if (uploadUrl != null && !uploadUrl.equals("")) {
+                ArchiveUploader uploader = getUploader();
+                if (uploader instanceof ChunkedArchiveUploader)
+                    ((ChunkedArchiveUploader) uploader).setCheckpoint(
+                        new UploadCheckpoint(uploadCheckpoint), getArchiveHash());
+                UploadMetrics metrics = createUploadMetrics(uploader);
+                boolean uploaded = false;
+                FileInputStream in = new FileInputStream(deployFile);
+                try {
+                    String url = uploader.upload(appid, environment, message, archiveType,
+                                                 in, deployFile.length(), metrics);
+                    uploaded = true;
+                    deployedUrl = url;
+                    System.out.println("Application " + appid + " deployed: " + url);
+                } finally {
+                    in.close();
+                    saveUploadMetrics(metrics, uploaded);
+                }
+                return;
+            }
+
             boolean deployDelta = (delta == null || delta.equalsIgnoreCase("true")) ? true : false;
 
             Map<String, String> parameters = new HashMap<String, String>();
             if (containerType != null)
                 parameters.put("containerType", containerType);
 
-            ApplicationDeployArchiveResponse res = client.applicationDeployArchive(appid, environment, message,
-                    deployFile.getAbsolutePath(), null, archiveType, deployDelta, parameters,
-                    new HashWriteProgress());
-            System.out.println("Application " + res.getId() + " deployed: " + res.getUrl());
+            UploadMetrics metrics = createUploadMetrics(client);
+            boolean uploaded = false;
+            try {
+                ApplicationDeployArchiveResponse res = client.applicationDeployArchive(appid, environment, message,
+                        deployFile.getAbsolutePath(), null, archiveType, deployDelta, parameters,
+                        metrics);
+                uploaded = true;
+                deployedUrl = res.getUrl();
+                System.out.println("Application " + res.getId() + " deployed: " + res.getUrl());
+            } finally {
+                saveUploadMetrics(metrics, uploaded);
+            }
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -295,12 +520,520 @@ public class DeployMojo extends AbstractI18NMojo
         }
     }
 
+    /**
+     * Packages and uploads at the same time: the package is written into a
+     * bounded pipe on a separate thread while the uploader streams it out, so
+     * stax-deploy.zip is never written to disk. The deployment descriptor is
+     * read from the source files instead of the package.
+     */
+    private void deployPipelined(Properties properties, boolean ear)
+        throws MojoExecutionException, MojoFailureException
+    {
+        if (uploadUrl == null || uploadUrl.equals(""))
+            throw new MojoExecutionException("bees.uploadUrl is required for pipelined deployments");
+        try {
+            initCredentials();
+
+            String[] environments = ApplicationHelper.getEnvironmentList(environment);
+            String[] implicitEnvironments = new String[] { "deploy" };
+            AppConfig config;
+            if (ear) {
+                config = new AppConfig();
+                AppConfigHelper.load(config, appConfig.getAbsolutePath(),
+                                     environments, implicitEnvironments);
+            } else {
+                config = getAppConfig(warFile, environments, implicitEnvironments);
+            }
+            initAppId(config);
+            initAppDomain(properties);
+            environment = StringHelper.join(config.getAppliedEnvironments()
+                                            .toArray(new String[0]), ",");
+
+            System.out.println(String.format(
+                                             "Deploying application %s (environment: %s, pipelined)",
+                                             appid, environment));
+
+            ArchiveUploader uploader = getUploader();
+            UploadMetrics metrics = createUploadMetrics(uploader);
+            metrics.setAttribute("pipelined", "true");
+            boolean uploaded = false;
+            String url;
+            try {
+                if (!ear) {
+                    FileInputStream in = new FileInputStream(warFile);
+                    try {
+                        url = uploader.upload(appid, environment, message, "war", in,
+                                              warFile.length(), metrics);
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    final PackagePipe pipe = new PackagePipe();
+                    Thread packager = new Thread(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try {
+                                writeDeployPackage(pipe.getOutputStream(), null);
+                            } catch (Throwable t) {
+                                pipe.fail(t);
+                            }
+                        }
+                    }, "bees-package");
+                    packager.setDaemon(true);
+                    packager.start();
+                    InputStream in = pipe.getInputStream();
+                    try {
+                        url = uploader.upload(appid, environment, message, "ear", in, -1, metrics);
+                    } finally {
+                        in.close();
+                        packager.join();
+                    }
+                }
+                uploaded = true;
+            } finally {
+                saveUploadMetrics(metrics, uploaded);
+            }
+            deployedUrl = url;
+            System.out.println("Application " + appid + " deployed: " + url);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new MojoFailureException(
+                                           this,
+                                           getMessage("StaxMojo.deployFailed"),
+                                           e.getMessage());
+        }
+    }
+
+    private void createDeployPackage() throws Exception
+    {
+        FileOutputStream fstream = new FileOutputStream(deployFile);
+        writeDeployPackage(new BufferedOutputStream(fstream), fstream.getChannel());
+    }
+
+    /**
+     * Writes the EAR-style deployment package.
+     *
+     * @param out the stream to write the package to, closed on return
+     * @param channel the file channel out writes to, or null if not a file
+     */
+    private void writeDeployPackage(OutputStream out, FileChannel channel) throws Exception
+    {
+        int threads = getPackageThreads();
+        CompressionPolicy policy = getCompressionPolicy();
+        CompressedEntryCache cache = Boolean.parseBoolean(entryCache)
+                        ? new CompressedEntryCache(entryCacheDirectory) : null;
+        RawZipOutputStream zos = channel == null ? new RawZipOutputStream(out)
+                        : new RawZipOutputStream(out, channel);
+        try {
+            ZipHelper.addFileToZip(warFile, "webapp.war", zos, threads, policy, cache);
+            ZipHelper.addFileToZip(appConfig,
+                                   "META-INF/stax-application.xml", zos, 1, policy, cache);
+            ZipHelper.addFileToZip(appxml, "META-INF/application.xml", zos, 1, policy, cache);
+        } finally {
+            zos.close();
+        }
+        if (cache != null) {
+            cache.save();
+            getLog().info(String.format("entry cache: %d hits, %d misses",
+                                        cache.getHits(), cache.getMisses()));
+        }
+    }
+
+    /**
+     * Packages an exploded web application as a war file next to the
+     * deployment package, unless the war was packaged from the same files
+     * and settings before.
+     *
+     * @return the war file
+     */
+    private File packageWebapp(File directory) throws Exception
+    {
+        if (!directory.isDirectory())
+            throw new FileNotFoundException(directory + " is not a directory");
+        long start = System.currentTimeMillis();
+        File war = new File(deployFile.getParentFile(), "stax-webapp.war");
+        File fingerprintFile = new File(war.getPath() + ".fingerprint");
+        PackageFingerprint fingerprint = new PackageFingerprint()
+            .addDirectory("webappDirectory", directory, Boolean.parseBoolean(fingerprintContent))
+            .addValue("compression", compression);
+        if (!isForcePackage() && fingerprint.matches(fingerprintFile, war)) {
+            getLog().info("Web application package is up to date: " + war);
+            return war;
+        }
+        fingerprintFile.delete();
+        // kept apart from the package's entries, which are saved separately
+        CompressedEntryCache cache = Boolean.parseBoolean(entryCache)
+                        ? new CompressedEntryCache(new File(entryCacheDirectory, "webapp")) : null;
+        FileOutputStream fstream = new FileOutputStream(war);
+        RawZipOutputStream zos = new RawZipOutputStream(new BufferedOutputStream(fstream),
+                                                        fstream.getChannel());
+        try {
+            ZipHelper.addDirectoryToZip(directory, null, null, zos, getCompressionPolicy(),
+                                        getPackageThreads(), getPackageMemory(), cache);
+        } finally {
+            zos.close();
+        }
+        if (cache != null)
+            cache.save();
+        fingerprint.save(fingerprintFile, war);
+        getLog().info(String.format("Packaged %s in %d ms: %s", directory,
+                                    System.currentTimeMillis() - start, war));
+        return war;
+    }
+
+    private long getPackageMemory()
+    {
+        if (packageMemory == null || packageMemory.equals(""))
+            return ParallelDirectoryPackager.DEFAULT_MEMORY_CAP;
+        return Math.max(1, Long.parseLong(packageMemory)) * 1024 * 1024;
+    }
+
+    private PackageFingerprint getPackageFingerprint() throws IOException
+    {
+        boolean hashContent = Boolean.parseBoolean(fingerprintContent);
+        return new PackageFingerprint()
+            .addFile("warFile", warFile, hashContent)
+            .addFile("appConfig", appConfig, hashContent)
+            .addFile("appxml", appxml, hashContent)
+            .addValue("compression", compression);
+    }
+
+    private boolean isForcePackage()
+    {
+        return Boolean.parseBoolean(forcePackage);
+    }
+
+    private void initAppDomain(Properties properties) throws MojoExecutionException
+    {
+        String defaultAppDomain = properties.getProperty("bees.project.app.domain");
+        String[] appIdParts = appid.split("/");
+        if (appIdParts.length > 1)
+            return;
+        if (defaultAppDomain != null && !defaultAppDomain.equals("")) {
+            appid = defaultAppDomain + "/" + appid;
+        } else {
+            throw new MojoExecutionException(
+                                     "default app domain could not be determined, appid needs to be fully-qualified ");
+        }
+    }
+
+    /**
+     * Creates the deployment of one module of a reactor build, with the same
+     * settings as this one. Settings that name files in this project's build
+     * directory are moved to the module's build directory. The module's
+     * descriptors, web resources directory and app id are read from this
+     * plugin's configuration in the module's POM, then from the module's
+     * bees.appxml, bees.j2ee.appxml and bees.appid properties, and default to
+     * the module's own src/main directories; the user is never prompted.
+     *
+     * @param project the module
+     * @param buildDirectory this project's build directory
+     */
+    DeployMojo forProject(MavenProject project, File buildDirectory)
+    {
+        DeployMojo module = newDeployment();
+        File basedir = project.getBasedir();
+        File moduleBuildDirectory = new File(project.getBuild().getDirectory());
+        module.packaging = project.getPackaging();
+        module.baseDir = basedir.getPath();
+        module.warSourceDirectory = resolve(basedir, getModuleSetting(project, "warSourceDirectory", null,
+                                                                      "src/main/webapp")).getPath();
+        module.appConfig = resolve(basedir, getModuleSetting(project, "appConfig", "bees.appxml",
+                                                             "src/main/config/stax-application.xml"));
+        module.appxml = resolve(basedir, getModuleSetting(project, "appxml", "bees.j2ee.appxml",
+                                                          "src/main/config/application.xml"));
+        module.warFile = new File(moduleBuildDirectory, project.getBuild().getFinalName()
+                                  + "." + project.getPackaging());
+        module.deployFile = relocate(deployFile, buildDirectory, moduleBuildDirectory);
+        module.uploadCheckpoint = relocate(uploadCheckpoint, buildDirectory, moduleBuildDirectory);
+        module.uploadMetrics = relocate(uploadMetrics, buildDirectory, moduleBuildDirectory);
+        module.entryCacheDirectory = relocate(entryCacheDirectory, buildDirectory, moduleBuildDirectory);
+        if (webappDirectory != null)
+            // each module deploys its own exploded web application
+            module.webappDirectory = resolve(basedir, getModuleSetting(
+                project, "webappDirectory", "bees.webappDirectory",
+                new File(moduleBuildDirectory, project.getBuild().getFinalName()).getPath()));
+        module.appid = getModuleSetting(project, "appid", "bees.appid", null);
+        return module;
+    }
+
+    /**
+     * Reads a setting of a module: this plugin's configuration in the
+     * module's POM, then the module's property, then the default.
+     */
+    private static String getModuleSetting(MavenProject project, String parameter,
+                                           String property, String defaultValue)
+    {
+        for (Object o : project.getBuildPlugins()) {
+            Plugin plugin = (Plugin) o;
+            if (!PLUGIN_ARTIFACT_ID.equals(plugin.getArtifactId())
+                || !(plugin.getConfiguration() instanceof Xpp3Dom))
+                continue;
+            Xpp3Dom child = ((Xpp3Dom) plugin.getConfiguration()).getChild(parameter);
+            if (child != null && child.getValue() != null && !child.getValue().trim().equals(""))
+                return child.getValue().trim();
+        }
+        String value = property == null ? null : project.getProperties().getProperty(property);
+        return value != null && !value.equals("") ? value : defaultValue;
+    }
+
+    private static File resolve(File basedir, String path)
+    {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(basedir, path);
+    }
+
+    /**
+     * Creates a deployment with the same settings as this one, which never
+     * prompts the user. The state of this deployment's run, such as the
+     * deployed URL and bees.targets, is not carried over.
+     */
+    private DeployMojo newDeployment()
+    {
+        DeployMojo deployment = new DeployMojo();
+        deployment.setLog(getLog());
+        deployment.interactive = false;
+        deployment.packaging = packaging;
+        deployment.appid = appid;
+        deployment.apikey = apikey;
+        deployment.secret = secret;
+        deployment.environment = environment;
+        deployment.message = message;
+        deployment.apiurl = apiurl;
+        deployment.warSourceDirectory = warSourceDirectory;
+        deployment.appConfig = appConfig;
+        deployment.appxml = appxml;
+        deployment.baseDir = baseDir;
+        deployment.warFile = warFile;
+        deployment.deployFile = deployFile;
+        deployment.delta = delta;
+        deployment.forcePackage = forcePackage;
+        deployment.fingerprintContent = fingerprintContent;
+        deployment.pipeline = pipeline;
+        deployment.uploadUrl = uploadUrl;
+        deployment.uploadThreads = uploadThreads;
+        deployment.uploadPartSize = uploadPartSize;
+        deployment.uploadCheckpoint = uploadCheckpoint;
+        deployment.uploadMetrics = uploadMetrics;
+        deployment.proxyHost = proxyHost;
+        deployment.proxyPort = proxyPort;
+        deployment.proxyUser = proxyUser;
+        deployment.proxyPassword = proxyPassword;
+        deployment.containerType = containerType;
+        deployment.packageThreads = packageThreads;
+        deployment.compression = compression;
+        deployment.entryCache = entryCache;
+        deployment.entryCacheDirectory = entryCacheDirectory;
+        deployment.webappDirectory = webappDirectory;
+        deployment.packageMemory = packageMemory;
+        return deployment;
+    }
+
+    /**
+     * Deploys the package to each of bees.targets at the same time.
+     */
+    private void deployToTargets(Properties properties)
+        throws MojoExecutionException, MojoFailureException
+    {
+        List<DeployMojo> deployments = new ArrayList<DeployMojo>();
+        List<String> names = new ArrayList<String>();
+        try {
+            // ask for credentials once, before the targets copy them
+            initCredentials();
+            // only uploads to bees.uploadUrl use the hash; the API client
+            // hashes the package itself
+            if (uploadUrl != null && !uploadUrl.equals(""))
+                getArchiveHash();
+        } catch (IOException e) {
+            throw new MojoFailureException(this, getMessage("StaxMojo.deployFailed"), e.getMessage());
+        }
+
+        for (String target : targets.trim().split("[;\\s]+")) {
+            DeployMojo deployment = newDeployment();
+            // every target uploads the same package
+            deployment.archiveHash = archiveHash;
+            int at = target.indexOf('@');
+            deployment.appid = at < 0 ? target : target.substring(0, at);
+            if (at >= 0)
+                deployment.environment = target.substring(at + 1);
+            String suffix = "-" + deployment.appid.replace('/', '_');
+            deployment.uploadCheckpoint = addSuffix(uploadCheckpoint, suffix);
+            deployment.uploadMetrics = addSuffix(uploadMetrics, suffix);
+            deployments.add(deployment);
+            names.add(target);
+        }
+        deployConcurrently(deployments, names, deployments.size(), properties, false);
+    }
+
+    /**
+     * Runs several deployments at the same time. A deployment that fails does
+     * not stop the others; a summary of all of them is logged and the goal
+     * fails at the end if any did.
+     *
+     * @param deployments
+     * @param names describe each deployment in the summary
+     * @param threads the number of deployments run at once
+     * @param properties
+     * @param packageFirst whether each deployment creates its own package,
+     *        sharing bees.packageThreads with the deployments running at the
+     *        same time
+     */
+    void deployConcurrently(List<DeployMojo> deployments, List<String> names, int threads,
+                            final Properties properties, final boolean packageFirst)
+        throws MojoExecutionException, MojoFailureException
+    {
+        int concurrent = Math.max(1, Math.min(threads, deployments.size()));
+        if (packageFirst) {
+            String share = String.valueOf(Math.max(1, getPackageThreads() / concurrent));
+            for (DeployMojo deployment : deployments) {
+                deployment.packageThreads = share;
+                deployment.logBufferPool = false;
+            }
+            getLog().info(String.format("packaging %d modules at a time on %s threads each",
+                                        concurrent, share));
+        }
+        BufferPool pool = BufferPool.getDefault();
+        long hits = pool.getHits();
+        long misses = pool.getMisses();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrent,
+                                                                new DaemonThreadFactory("bees-deploy"));
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        try {
+            for (final DeployMojo deployment : deployments) {
+                results.add(executor.submit(new Callable<Long>()
+                {
+                    public Long call() throws Exception
+                    {
+                        long start = System.currentTimeMillis();
+                        if (packageFirst)
+                            deployment.deploy(properties);
+                        else
+                            deployment.deployPackage(properties);
+                        return Long.valueOf(System.currentTimeMillis() - start);
+                    }
+                }));
+            }
+
+            int failed = 0;
+            StringBuilder summary = new StringBuilder();
+            for (int i = 0; i < deployments.size(); i++) {
+                DeployMojo deployment = deployments.get(i);
+                String status;
+                try {
+                    long millis = results.get(i).get().longValue();
+                    status = String.format("deployed %s in %.1f s: %s", deployment.appid,
+                                           millis / 1000.0, deployment.deployedUrl);
+                } catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause();
+                    status = "FAILED: " + (cause.getMessage() != null ? cause.getMessage() : cause.toString());
+                    if (cause instanceof MojoFailureException
+                        && ((MojoFailureException) cause).getLongMessage() != null)
+                        status += " (" + ((MojoFailureException) cause).getLongMessage() + ")";
+                }
+                summary.append("\n  ").append(names.get(i)).append(": ").append(status);
+            }
+            getLog().info(String.format("Deployed %d of %d applications:%s",
+                                        deployments.size() - failed, deployments.size(), summary));
+            if (packageFirst)
+                getLog().debug(String.format("packaging buffer pool: %d hits, %d misses",
+                                             pool.getHits() - hits, pool.getMisses() - misses));
+            if (failed > 0)
+                throw new MojoFailureException(failed + " of " + deployments.size()
+                                               + " applications failed to deploy");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("interrupted while deploying", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static File addSuffix(File file, String suffix)
+    {
+        if (file == null)
+            return null;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        name = dot <= 0 ? name + suffix : name.substring(0, dot) + suffix + name.substring(dot);
+        return new File(file.getParentFile(), name);
+    }
+
+    private synchronized String getArchiveHash() throws IOException
+    {
+        if (archiveHash == null) {
+            FileInputStream in = new FileInputStream(deployFile);
+            try {
+                archiveHash = StreamHelper.sha1(in);
+            } finally {
+                in.close();
+            }
+        }
+        return archiveHash;
+    }
+
+    private static File relocate(File file, File from, File to)
+    {
+        if (file == null)
+            return null;
+        String path = file.getAbsolutePath();
+        String prefix = from.getAbsolutePath() + File.separator;
+        if (!path.startsWith(prefix))
+            return file;
+        return new File(to, path.substring(prefix.length()));
+    }
+
+    private UploadMetrics createUploadMetrics(Object uploader)
+    {
+        UploadMetrics metrics = new UploadMetrics(System.out);
+        if (!interactive)
+            metrics.setLabel(appid);
+        metrics.setAttribute("appId", appid);
+        metrics.setAttribute("environment", environment);
+        metrics.setAttribute("uploader", uploader.getClass().getSimpleName());
+        metrics.start();
+        return metrics;
+    }
+
+    private void saveUploadMetrics(UploadMetrics metrics, boolean succeeded)
+    {
+        try {
+            metrics.writeSummary(uploadMetrics, succeeded);
+            getLog().info(String.format("upload: %s/s average, %s/s median (metrics: %s)",
+                                        UploadMetrics.formatBytes((long) metrics.getAverageRate()),
+                                        UploadMetrics.formatBytes((long) metrics.getPercentile(50)),
+                                        uploadMetrics));
+            getLog().debug(HttpClientHelper.getPoolStatistics());
+        } catch (IOException e) {
+            getLog().warn("could not write upload metrics: " + e.getMessage());
+        }
+    }
+
+    private ArchiveUploader getUploader()
+    {
+        int threads = uploadThreads == null || uploadThreads.equals("") ? ChunkedArchiveUploader.DEFAULT_THREADS
+                        : Integer.parseInt(uploadThreads);
+        if (threads <= 1)
+            return new HttpStreamingUploader(uploadUrl, apikey, secret);
+        ChunkedArchiveUploader uploader = new ChunkedArchiveUploader(uploadUrl, apikey, secret);
+        uploader.setThreads(threads);
+        if (uploadPartSize != null && !uploadPartSize.equals(""))
+            uploader.setPartSize(Integer.parseInt(uploadPartSize) * 1024 * 1024);
+        return uploader;
+    }
+
+    private boolean isPipeline()
+    {
+        return Boolean.parseBoolean(pipeline);
+    }
+
     private void initAppId(AppConfig appConfig) throws IOException
     {
         if (appid == null || appid.equals("")) {
             appid = appConfig.getApplicationId();
 
-            if (appid == null || appid.equals(""))
+            if ((appid == null || appid.equals("")) && interactive)
                 appid = promptForAppId();
             
             if (appid == null || appid.equals(""))
@@ -309,7 +1042,7 @@ public class DeployMojo extends AbstractI18NMojo
         }
     }
 
-    private String getSysProperty(String parameterName, String defaultValue)
+    String getSysProperty(String parameterName, String defaultValue)
     {
         String value = System.getProperty(parameterName);
         if (value != null)
@@ -321,7 +1054,7 @@ public class DeployMojo extends AbstractI18NMojo
     /**
      * Initialize the parameter values (to allow system property overrides)
      */
-    private void initParameters(Properties properties)
+    void initParameters(Properties properties)
     {
         appid = getSysProperty("bees.appid", appid);
 
@@ -344,9 +1077,40 @@ public class DeployMojo extends AbstractI18NMojo
         proxyUser = getSysProperty("bees.proxyUser", proxyUser);
         proxyPassword = getSysProperty("bees.proxyPassword", proxyPassword);
         containerType = getSysProperty("bees.containerType", containerType);
+        packageThreads = getSysProperty("bees.packageThreads", packageThreads);
+        compression = getSysProperty("bees.compression", compression);
+        entryCache = getSysProperty("bees.entryCache", entryCache);
+        packageMemory = getSysProperty("bees.packageMemory", packageMemory);
+        forcePackage = getSysProperty("bees.forcePackage", forcePackage);
+        fingerprintContent = getSysProperty("bees.fingerprintContent", fingerprintContent);
+        pipeline = getSysProperty("bees.pipeline", pipeline);
+        uploadUrl = getSysProperty("bees.uploadUrl", uploadUrl);
+        uploadThreads = getSysProperty("bees.uploadThreads", uploadThreads);
+        uploadPartSize = getSysProperty("bees.uploadPartSize", uploadPartSize);
+        targets = getSysProperty("bees.targets", targets);
+    }
+
+    private int getPackageThreads()
+    {
+        if (packageThreads == null || packageThreads.equals(""))
+            return Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Integer.parseInt(packageThreads));
+    }
+
+    private CompressionPolicy getCompressionPolicy() throws MojoExecutionException
+    {
+        if (compression == null || compression.equals("") || compression.equalsIgnoreCase("auto"))
+            return new DefaultCompressionPolicy();
+        if (compression.equalsIgnoreCase("deflate"))
+            return new FixedCompressionPolicy(Deflater.DEFAULT_COMPRESSION);
+        try {
+            return (CompressionPolicy)Class.forName(compression).newInstance();
+        } catch (Exception e) {
+            throw new MojoExecutionException("invalid compression policy: " + compression, e);
+        }
     }
 
-    private Properties getConfigProperties()
+    Properties getConfigProperties()
     {
         Properties properties = new Properties();
         File userConfigFile = new File(System.getProperty("user.home"), ".bees/bees.config");
@@ -369,7 +1133,7 @@ public class DeployMojo extends AbstractI18NMojo
         return properties;
     }
 
-    private void initCredentials() throws IOException
+    void initCredentials() throws IOException
     {
         boolean promptForApiKey = apikey == null;
         boolean promptForApiSecret = apikey == null || secret == null;
@@ -399,27 +1163,15 @@ public class DeployMojo extends AbstractI18NMojo
                                    final String[] environments,
                                    final String[] implicitEnvironments) throws IOException
     {
-        final AppConfig appConfig = new AppConfig();
+        AppConfig appConfig = new AppConfig();
 
-        FileInputStream fin = new FileInputStream(deployZip);
-        try {
-            ZipHelper.unzipFile(fin, new ZipEntryHandler()
-            {
-                public void unzip(ZipEntry entry, InputStream zis) throws IOException
-                {
-                    if (entry.getName().equals(
-                                               "META-INF/stax-application.xml") ||
-                        entry.getName().equals("WEB-INF/stax-web.xml") ||
-                        entry.getName().equals("WEB-INF/cloudbees-web.xml"))
-                    {
-                        AppConfigHelper.load(appConfig, zis, null,
-                                             environments,
-                                             implicitEnvironments);
-                    }
-                }
-            }, false);
-        } finally {
-            fin.close();
+        Map<String, byte[]> descriptors = ZipHelper.getZipEntries(deployZip, Arrays.asList(
+            "META-INF/stax-application.xml", "WEB-INF/stax-web.xml",
+            "WEB-INF/cloudbees-web.xml"));
+        for (byte[] descriptor : descriptors.values()) {
+            AppConfigHelper.load(appConfig, new ByteArrayInputStream(descriptor), null,
+                                 environments,
+                                 implicitEnvironments);
         }
 
         return appConfig;
@@ -0,0 +1,103 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Sends a region of a file as a request body through
+ * {@link ChannelHelper#transfer(FileChannel, long, long, WritableByteChannel)},
+ * rather than copying it through a stream. The file's position is not
+ * changed, so the entity can be written again when a request is retried.
+ */
+public class FileChannelRequestEntity implements RequestEntity
+{
+    private FileChannel file;
+    private long position;
+    private long length;
+    private String contentType;
+    private WriteListener listener;
+
+    /**
+     * @param file
+     * @param position the offset of the region in the file
+     * @param length the length of the region
+     * @param contentType
+     * @param listener notified as the region is written, may be null
+     */
+    public FileChannelRequestEntity(FileChannel file, long position, long length,
+        String contentType, WriteListener listener)
+    {
+        this.file = file;
+        this.position = position;
+        this.length = length;
+        this.contentType = contentType;
+        this.listener = listener;
+    }
+
+    public boolean isRepeatable()
+    {
+        return true;
+    }
+
+    public void writeRequest(OutputStream out) throws IOException
+    {
+        WritableByteChannel channel = Channels.newChannel(out);
+        if (listener != null)
+            channel = new ProgressChannel(channel);
+        long written = ChannelHelper.transfer(file, position, length, channel);
+        if (written < length)
+            throw new IOException("file is shorter than the request body (" + written
+                                  + " of " + length + " bytes)");
+        out.flush();
+    }
+
+    public long getContentLength()
+    {
+        return length;
+    }
+
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    /**
+     * Reports the bytes written to a channel to the listener.
+     */
+    private class ProgressChannel implements WritableByteChannel
+    {
+        private WritableByteChannel channel;
+        private long total = 0;
+
+        ProgressChannel(WritableByteChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        public int write(ByteBuffer src) throws IOException
+        {
+            int n = channel.write(src);
+            if (n > 0) {
+                total += n;
+                listener.handleBytesWritten(n, total, length);
+            }
+            return n;
+        }
+
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
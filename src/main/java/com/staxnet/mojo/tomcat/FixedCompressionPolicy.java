@@ -0,0 +1,21 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+
+/**
+ * Compresses every entry at the same level.
+ */
+public class FixedCompressionPolicy implements CompressionPolicy
+{
+    private int level;
+
+    public FixedCompressionPolicy(int level)
+    {
+        this.level = level;
+    }
+
+    public int getLevel(String entryName, File file)
+    {
+        return level;
+    }
+}
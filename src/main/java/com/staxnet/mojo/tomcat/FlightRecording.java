@@ -0,0 +1,64 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Starts a Java Flight Recorder session, in this JVM through the diagnostic
+ * command MBean (as jcmd JFR.start would) or in a forked JVM through its
+ * options. The recording uses the profile settings and is written to its
+ * file when the JVM exits.
+ */
+public class FlightRecording
+{
+    private static final String NAME = "bees-run";
+    private static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+
+    private File file;
+
+    /**
+     * @param file where the recording is written
+     */
+    public FlightRecording(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Starts recording this JVM.
+     *
+     * @throws JMException if this JVM cannot record, e.g. a Java 8 JVM without
+     *         flight recorder support
+     */
+    public void start() throws JMException
+    {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        String[] arguments = getSettings().split(",");
+        ManagementFactory.getPlatformMBeanServer().invoke(
+            new ObjectName(DIAGNOSTIC_COMMAND), "jfrStart", new Object[] { arguments },
+            new String[] { String[].class.getName() });
+    }
+
+    /**
+     * @return the JVM option that records a forked JVM
+     */
+    public String getJvmArg()
+    {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        return "-XX:StartFlightRecording=" + getSettings();
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    private String getSettings()
+    {
+        return "name=" + NAME + ",settings=profile,dumponexit=true,filename="
+            + file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,60 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+/**
+ * Runs the server for bees:run in a forked JVM. The settings are read from
+ * the properties file written by {@link RunMojo}, named by the only
+ * argument.
+ */
+public class ForkedServer
+{
+    public static void main(String[] args) throws Exception
+    {
+        Properties settings = new Properties();
+        FileInputStream fis = new FileInputStream(args[0]);
+        try {
+            settings.load(fis);
+        } finally {
+            fis.close();
+        }
+
+        Log log = new SystemStreamLog();
+        ClassLoader cl = ForkedServer.class.getClassLoader();
+        String[] classdirs = split(settings.getProperty("classdirs"), "\n");
+        String[] environments = split(settings.getProperty("environments"), ",");
+        int port = Integer.parseInt(settings.getProperty("port"));
+
+        if (Boolean.parseBoolean(settings.getProperty("watch")))
+            WebappReloader.watch(log, settings.getProperty("classesDir"),
+                                 settings.getProperty("warSourceDirectory"),
+                                 Long.parseLong(settings.getProperty("watchDebounce")));
+
+        if (settings.getProperty("appConfig") != null) {
+            RunMojo.runEar(log, settings.getProperty("baseDir"),
+                           settings.getProperty("configurationDir"), cl, classdirs, port,
+                           getFile(settings, "serverXml"), getFile(settings, "appConfig"),
+                           getFile(settings, "appxml"), environments);
+        } else {
+            RunMojo.runWar(log, settings.getProperty("configurationDir"),
+                           settings.getProperty("warSourceDirectory"), cl, classdirs, port,
+                           environments, getFile(settings, "serverXml"));
+        }
+    }
+
+    private static String[] split(String value, String delim)
+    {
+        return value == null || value.equals("") ? new String[0] : value.split(delim);
+    }
+
+    private static File getFile(Properties settings, String name)
+    {
+        String path = settings.getProperty(name);
+        return path == null ? null : new File(path);
+    }
+}
@@ -1,14 +1,47 @@
 package com.staxnet.mojo.tomcat;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 
+/**
+ * Creates HTTP clients that share one pool of keep-alive connections, so
+ * that requests to the same host (or proxy) reuse open TCP and TLS
+ * connections instead of handshaking again. The deploy goals close the pool
+ * with {@link #shutdown()} when they finish, stopping its idle connection
+ * thread; the modules bees:deploy-all deploys at once share it.
+ *
+ * The pool is configured with system properties:
+ * <ul>
+ * <li>bees.http.maxConnectionsPerHost, default 8</li>
+ * <li>bees.http.maxConnections, default 32</li>
+ * <li>bees.http.idleTimeout, the milliseconds after which an unused
+ * connection is closed, default 60000</li>
+ * </ul>
+ */
 public class HttpClientHelper {
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    private static final int DEFAULT_MAX_CONNECTIONS = 32;
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private static MultiThreadedHttpConnectionManager sharedConnectionManager;
+    private static IdleConnectionTimeoutThread idleConnectionEvictor;
+    private static AtomicLong clientsCreated = new AtomicLong();
+
+    /**
+     * @return a client using the shared connection pool. Clients are cheap;
+     *         create one per task so credentials are not shared.
+     */
     public static HttpClient createClient()
     {
-        HttpClient client = new HttpClient();
+        HttpClient client = new HttpClient(getSharedConnectionManager());
+        clientsCreated.incrementAndGet();
         String proxyHost = System.getProperty("http.proxyHost");
         if(proxyHost != null)
         {
@@ -33,4 +66,77 @@ public class HttpClientHelper {
 
         return client;
     }
+
+    /**
+     * @return the connection manager shared by clients from
+     *         {@link #createClient()}
+     */
+    public static synchronized MultiThreadedHttpConnectionManager getSharedConnectionManager()
+    {
+        if (sharedConnectionManager == null) {
+            MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+            HttpConnectionManagerParams params = manager.getParams();
+            params.setDefaultMaxConnectionsPerHost(Integer.getInteger(
+                "bees.http.maxConnectionsPerHost", DEFAULT_MAX_CONNECTIONS_PER_HOST).intValue());
+            params.setMaxTotalConnections(Integer.getInteger(
+                "bees.http.maxConnections", DEFAULT_MAX_CONNECTIONS).intValue());
+            // pooled connections may have been closed by the server or proxy
+            params.setStaleCheckingEnabled(true);
+
+            long idleTimeout = Long.getLong("bees.http.idleTimeout", DEFAULT_IDLE_TIMEOUT).longValue();
+            IdleConnectionTimeoutThread evictor = new IdleConnectionTimeoutThread();
+            evictor.setName("bees-http-idle");
+            evictor.setConnectionTimeout(idleTimeout);
+            evictor.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+            evictor.addConnectionManager(manager);
+            evictor.start();
+
+            sharedConnectionManager = manager;
+            idleConnectionEvictor = evictor;
+        }
+        return sharedConnectionManager;
+    }
+
+    /**
+     * Raises the shared pool's per-host limit (and total limit, if needed) so
+     * that the given number of requests to one host can run at once.
+     *
+     * @param connections
+     */
+    public static synchronized void ensureConnectionsPerHost(int connections)
+    {
+        HttpConnectionManagerParams params = getSharedConnectionManager().getParams();
+        if (params.getDefaultMaxConnectionsPerHost() < connections)
+            params.setDefaultMaxConnectionsPerHost(connections);
+        if (params.getMaxTotalConnections() < connections)
+            params.setMaxTotalConnections(connections);
+    }
+
+    /**
+     * @return a one-line description of the shared pool
+     */
+    public static synchronized String getPoolStatistics()
+    {
+        if (sharedConnectionManager == null)
+            return "http connection pool not started, " + clientsCreated.get() + " clients created";
+        HttpConnectionManagerParams params = sharedConnectionManager.getParams();
+        return String.format("http connection pool: %d connections open (max %d per host, %d total), %d clients created",
+                             sharedConnectionManager.getConnectionsInPool(),
+                             params.getDefaultMaxConnectionsPerHost(),
+                             params.getMaxTotalConnections(), clientsCreated.get());
+    }
+
+    /**
+     * Closes the shared pool's connections. A later
+     * {@link #createClient()} starts a new pool.
+     */
+    public static synchronized void shutdown()
+    {
+        if (sharedConnectionManager == null)
+            return;
+        idleConnectionEvictor.shutdown();
+        sharedConnectionManager.shutdown();
+        idleConnectionEvictor = null;
+        sharedConnectionManager = null;
+    }
 }
@@ -0,0 +1,124 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Streams a deployment archive to an upload service in a single HTTP POST.
+ * When the archive length is unknown the body is sent with chunked transfer
+ * encoding, so the archive never has to exist as a file. An archive read from
+ * a file is sent straight from the file's channel.
+ *
+ * The request is POST {uploadUrl}/deploy with the app_id, environment,
+ * message and archive_type query parameters and HTTP basic authentication
+ * using the API key and secret. A 2xx response carries the application URL
+ * as its body.
+ */
+public class HttpStreamingUploader implements ArchiveUploader
+{
+    private String uploadUrl;
+    private String apikey;
+    private String secret;
+
+    public HttpStreamingUploader(String uploadUrl, String apikey, String secret)
+    {
+        this.uploadUrl = uploadUrl.endsWith("/") ? uploadUrl.substring(0, uploadUrl.length() - 1) : uploadUrl;
+        this.apikey = apikey;
+        this.secret = secret;
+    }
+
+    public String upload(String appId, String environment, String message,
+        String archiveType, InputStream archive, long length,
+        WriteListener listener) throws IOException
+    {
+        HttpClient client = HttpClientHelper.createClient();
+        client.getParams().setAuthenticationPreemptive(true);
+        client.getState().setCredentials(AuthScope.ANY,
+            new UsernamePasswordCredentials(apikey, secret));
+
+        PostMethod post = new PostMethod(uploadUrl + "/deploy");
+        List<NameValuePair> params = new ArrayList<NameValuePair>();
+        params.add(new NameValuePair("app_id", appId));
+        params.add(new NameValuePair("archive_type", archiveType));
+        if (environment != null)
+            params.add(new NameValuePair("environment", environment));
+        if (message != null)
+            params.add(new NameValuePair("message", message));
+        post.setQueryString(params.toArray(new NameValuePair[0]));
+        RequestEntity entity;
+        if (archive instanceof FileInputStream && length >= 0) {
+            FileChannel file = ((FileInputStream) archive).getChannel();
+            entity = new FileChannelRequestEntity(file, file.position(), length,
+                "application/zip", listener);
+        } else {
+            entity = new InputStreamRequestEntity(
+                new ProgressInputStream(archive, length, listener), length,
+                "application/zip");
+        }
+        post.setRequestEntity(entity);
+        try {
+            int status = client.executeMethod(post);
+            String body = post.getResponseBodyAsString();
+            if (status < 200 || status >= 300)
+                throw new IOException("upload failed (HTTP " + status + "): " + body);
+            return body == null ? null : body.trim();
+        } finally {
+            post.releaseConnection();
+        }
+    }
+
+    /**
+     * Reports bytes read from the archive to a {@link WriteListener}.
+     */
+    static class ProgressInputStream extends FilterInputStream
+    {
+        private long total = 0;
+        private long length;
+        private WriteListener listener;
+
+        ProgressInputStream(InputStream in, long length, WriteListener listener)
+        {
+            super(in);
+            this.length = length;
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b != -1)
+                notifyListener(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                notifyListener(n);
+            return n;
+        }
+
+        private void notifyListener(long delta)
+        {
+            total += delta;
+            if (listener != null)
+                listener.handleBytesWritten(delta, total, length);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.staxnet.mojo.tomcat;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram: values are counted
+ * in buckets whose width grows with their magnitude, 64 to each power of two,
+ * so every value is recorded to within 1.6% however large it is, in a fixed
+ * few kilobytes. Values are in microseconds.
+ *
+ * Not thread safe; give each thread its own histogram and
+ * {@link #add(LatencyHistogram)} them up afterwards.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF_SUB_BUCKET_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int BUCKETS = 64 - SUB_BUCKET_BITS + 2;
+
+    private long[] counts = new long[BUCKETS * HALF_SUB_BUCKET_COUNT];
+    private long totalCount = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+    private double sum = 0;
+
+    /**
+     * @param value a latency in microseconds, at least 0
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        counts[indexOf(value)]++;
+        totalCount++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     *
+     * @param other
+     */
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    public long getTotalCount()
+    {
+        return totalCount;
+    }
+
+    public long getMin()
+    {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    public double getMean()
+    {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value equivalent to the value at the percentile,
+     *         never more than the largest value recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        if (totalCount == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(max, highestEquivalentValue(i));
+        }
+        return max;
+    }
+
+    /**
+     * Values below 128 are counted exactly; above that the value is shifted
+     * right until it fits in 7 bits, and the shift and remaining bits pick
+     * the bucket.
+     */
+    static int indexOf(long value)
+    {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (int) (shift * HALF_SUB_BUCKET_COUNT + (value >>> shift));
+    }
+
+    static long highestEquivalentValue(int index)
+    {
+        int shift = Math.max(0, index / HALF_SUB_BUCKET_COUNT - 1);
+        long subBucket = index - shift * HALF_SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,200 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends GET requests to a list of URLs from a number of concurrent clients,
+ * each waiting for its response before sending the next, for a warmup
+ * period and then a measured period. Only requests that start and complete
+ * within the measured period are counted; a request fails if it cannot be
+ * completed or is answered with a status of 400 or more.
+ *
+ * Connections are kept alive between requests and never go through a proxy.
+ */
+public class LoadGenerator
+{
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 60 * 1000;
+
+    private List<URL> urls;
+    private int concurrency;
+    private long warmupMillis;
+    private long durationMillis;
+
+    private volatile long measureStart;
+    private volatile long measureEnd;
+    private LatencyHistogram histogram = new LatencyHistogram();
+    private long requests = 0;
+    private long failures = 0;
+    private String lastFailure;
+
+    /**
+     * @param urls the URLs to request, in turn
+     * @param concurrency the number of concurrent clients
+     * @param warmupMillis
+     * @param durationMillis the length of the measured period
+     */
+    public LoadGenerator(List<URL> urls, int concurrency, long warmupMillis, long durationMillis)
+    {
+        this.urls = urls;
+        this.concurrency = concurrency;
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Runs the warmup and the measured period.
+     *
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException
+    {
+        long now = System.nanoTime();
+        measureStart = now + warmupMillis * 1000000;
+        measureEnd = measureStart + durationMillis * 1000000;
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("bees-bench"));
+        try {
+            List<Future<Client>> clients = new ArrayList<Future<Client>>();
+            for (int i = 0; i < concurrency; i++)
+                clients.add(pool.submit(new Client(i)));
+            for (Future<Client> future : clients) {
+                try {
+                    Client client = future.get();
+                    histogram.add(client.histogram);
+                    requests += client.requests;
+                    failures += client.failures;
+                    if (client.lastFailure != null)
+                        lastFailure = client.lastFailure;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the latencies of the measured requests that succeeded
+     */
+    public LatencyHistogram getHistogram()
+    {
+        return histogram;
+    }
+
+    /**
+     * @return the number of measured requests, including failures
+     */
+    public long getRequests()
+    {
+        return requests;
+    }
+
+    public long getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * @return why the last failed request failed, or null
+     */
+    public String getLastFailure()
+    {
+        return lastFailure;
+    }
+
+    /**
+     * @return the measured requests per second
+     */
+    public double getThroughput()
+    {
+        return durationMillis <= 0 ? 0 : requests * 1000.0 / durationMillis;
+    }
+
+    /**
+     * @return the percentage of measured requests that failed
+     */
+    public double getFailureRate()
+    {
+        return requests == 0 ? 0 : failures * 100.0 / requests;
+    }
+
+    private class Client implements Callable<Client>
+    {
+        private int next;
+        private LatencyHistogram histogram = new LatencyHistogram();
+        private long requests = 0;
+        private long failures = 0;
+        private String lastFailure;
+        private byte[] buffer = new byte[8192];
+
+        Client(int first)
+        {
+            // start the clients on different URLs
+            this.next = first;
+        }
+
+        public Client call()
+        {
+            while (!Thread.currentThread().isInterrupted()) {
+                URL url = urls.get(next++ % urls.size());
+                long start = System.nanoTime();
+                if (start >= measureEnd)
+                    break;
+                String failure = request(url);
+                long end = System.nanoTime();
+                if (start < measureStart || end > measureEnd)
+                    continue;
+                requests++;
+                if (failure == null) {
+                    histogram.record((end - start) / 1000);
+                } else {
+                    failures++;
+                    lastFailure = failure;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @return null if the request succeeded, else why it failed
+         */
+        private String request(URL url)
+        {
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) url.openConnection(Proxy.NO_PROXY);
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                int status = connection.getResponseCode();
+                InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (in != null) {
+                    // read to the end so the connection can be reused
+                    try {
+                        while (in.read(buffer) != -1)
+                            ;
+                    } finally {
+                        in.close();
+                    }
+                }
+                return status >= 400 ? url + " answered " + status : null;
+            } catch (IOException e) {
+                if (connection != null)
+                    connection.disconnect();
+                return url + ": " + e;
+            }
+        }
+    }
+}
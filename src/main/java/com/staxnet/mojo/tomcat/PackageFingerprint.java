@@ -0,0 +1,144 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Describes the inputs of a generated package so that it can be reused when
+ * nothing has changed. Files are identified by path, size and modification
+ * time, and optionally by a hash of their content. The package itself is
+ * recorded too, so a package that was modified or replaced is not reused.
+ */
+public class PackageFingerprint
+{
+    private static final String OUTPUT_KEY = "output";
+
+    private Properties values = new Properties();
+
+    /**
+     * Adds a file to the fingerprint. Missing files are recorded as such.
+     *
+     * @param key
+     * @param file
+     * @param hashContent whether to include a hash of the file content
+     * @return this fingerprint
+     * @throws IOException
+     */
+    public PackageFingerprint addFile(String key, File file, boolean hashContent) throws IOException
+    {
+        String value = describe(file);
+        if (hashContent && file.isFile()) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                value += "," + StreamHelper.sha1(in);
+            } finally {
+                in.close();
+            }
+        }
+        values.setProperty(key, value);
+        return this;
+    }
+
+    /**
+     * Adds every file under a directory to the fingerprint, skipping hidden
+     * files as the packagers do. Files added or removed change the
+     * fingerprint as well as changed ones.
+     *
+     * @param key
+     * @param directory
+     * @param hashContent whether to include a hash of each file's content
+     * @return this fingerprint
+     * @throws IOException
+     */
+    public PackageFingerprint addDirectory(String key, File directory, boolean hashContent) throws IOException
+    {
+        if (!directory.isDirectory())
+            return addFile(key, directory, hashContent);
+        values.setProperty(key, directory.getAbsolutePath() + ",directory");
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isHidden())
+                    continue;
+                String name = key + "/" + file.getName();
+                if (file.isDirectory())
+                    addDirectory(name, file, hashContent);
+                else
+                    addFile(name, file, hashContent);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds a setting that affects the package content to the fingerprint.
+     *
+     * @param key
+     * @param value
+     * @return this fingerprint
+     */
+    public PackageFingerprint addValue(String key, String value)
+    {
+        values.setProperty(key, value == null ? "" : value);
+        return this;
+    }
+
+    /**
+     * Checks whether a saved fingerprint describes the same inputs and the
+     * package it was saved with is unchanged.
+     *
+     * @param fingerprintFile
+     * @param packageFile
+     * @return true if the package can be reused
+     */
+    public boolean matches(File fingerprintFile, File packageFile)
+    {
+        if (!fingerprintFile.exists() || !packageFile.exists())
+            return false;
+        Properties saved = new Properties();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(fingerprintFile);
+            saved.load(fis);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (fis != null)
+                StreamHelper.close(fis);
+        }
+        Properties expected = new Properties();
+        expected.putAll(values);
+        expected.setProperty(OUTPUT_KEY, describe(packageFile));
+        return expected.equals(saved);
+    }
+
+    /**
+     * Saves this fingerprint along with the current state of the package.
+     *
+     * @param fingerprintFile
+     * @param packageFile
+     * @throws IOException
+     */
+    public void save(File fingerprintFile, File packageFile) throws IOException
+    {
+        Properties saved = new Properties();
+        saved.putAll(values);
+        saved.setProperty(OUTPUT_KEY, describe(packageFile));
+        FileOutputStream fos = new FileOutputStream(fingerprintFile);
+        try {
+            saved.store(fos, "bees package fingerprint");
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static String describe(File file)
+    {
+        if (!file.exists())
+            return file.getAbsolutePath() + ",missing";
+        return file.getAbsolutePath() + "," + file.length() + "," + file.lastModified();
+    }
+}
@@ -0,0 +1,181 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, chunked pipe between a thread producing a package and a thread
+ * consuming it (typically an upload). The producer blocks once maxChunks
+ * chunks are waiting, so memory use stays bounded however far the producer
+ * gets ahead. A failure on either side is reported to the other.
+ */
+public class PackagePipe {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_CHUNKS = 64;
+
+    private static final byte[] EOF = new byte[0];
+    private static final long POLL_MILLIS = 200;
+
+    private int chunkSize;
+    private BlockingQueue<byte[]> queue;
+    private volatile Throwable producerError;
+    private volatile boolean consumerClosed = false;
+    private OutputStream out;
+    private InputStream in;
+
+    public PackagePipe() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNKS);
+    }
+
+    public PackagePipe(int chunkSize, int maxChunks) {
+        this.chunkSize = chunkSize;
+        this.queue = new ArrayBlockingQueue<byte[]>(Math.max(1, maxChunks));
+        this.out = new PipeOutputStream();
+        this.in = new PipeInputStream();
+    }
+
+    /**
+     * @return the producer side. Closing it marks the end of the package.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @return the consumer side. Closing it before the end makes further
+     *         writes fail.
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Aborts the pipe from the producer side; the consumer's next read fails
+     * with the given cause.
+     *
+     * @param cause
+     */
+    public void fail(Throwable cause) {
+        producerError = cause;
+        queue.clear();
+        queue.offer(EOF);
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        private byte[] chunk = new byte[chunkSize];
+        private int count = 0;
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == chunk.length)
+                flushChunk();
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == chunk.length)
+                    flushChunk();
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            flushChunk();
+            put(EOF);
+            closed = true;
+        }
+
+        private void flushChunk() throws IOException {
+            if (count == 0)
+                return;
+            byte[] full = chunk;
+            if (count < full.length) {
+                full = new byte[count];
+                System.arraycopy(chunk, 0, full, 0, count);
+            } else {
+                chunk = new byte[chunkSize];
+            }
+            count = 0;
+            put(full);
+        }
+
+        private void put(byte[] data) throws IOException {
+            try {
+                while (!queue.offer(data, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (consumerClosed)
+                        throw new IOException("package consumer closed the pipe");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while writing package", e);
+            }
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private byte[] current;
+        private int position = 0;
+        private boolean eof = false;
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() {
+            consumerClosed = true;
+            queue.clear();
+        }
+
+        private boolean fill() throws IOException {
+            while (!eof && (current == null || position == current.length)) {
+                try {
+                    current = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while reading package", e);
+                }
+                position = 0;
+                if (current == EOF)
+                    eof = true;
+            }
+            if (producerError != null)
+                throw new IOException("packaging failed: " + producerError.getMessage(), producerError);
+            return !eof;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream into a single raw deflate stream using several threads,
+ * in the same way as pigz. The input is split into fixed-size blocks which are
+ * deflated independently, each primed with the last 32K of the block before it
+ * so that compression stays close to a single-threaded deflate. Every block
+ * but the last ends with a sync flush so the outputs can simply be
+ * concatenated in order.
+ */
+public class ParallelDeflater {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private int threads;
+    private int blockSize;
+    private int level;
+
+    public ParallelDeflater(int threads) {
+        this(threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelDeflater(int threads, int blockSize, int level) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
+        if (blockSize < DICTIONARY_SIZE)
+            throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE);
+        this.threads = threads;
+        this.blockSize = blockSize;
+        this.level = level;
+    }
+
+    /**
+     * Deflates the input stream and writes the raw deflate data to out. Neither
+     * stream is closed.
+     *
+     * @param in
+     * @param out
+     * @return the crc and sizes of the data
+     * @throws IOException
+     */
+    public Result deflate(InputStream in, OutputStream out) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("bees-deflate"));
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        int maxPending = threads * 2;
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long compressedSize = 0;
+        try {
+            byte[] dictionary = null;
+            byte[] block = readBlock(in);
+            while (true) {
+                byte[] next = block.length == blockSize ? readBlock(in) : new byte[0];
+                boolean last = next.length == 0;
+                crc.update(block, 0, block.length);
+                size += block.length;
+                pending.add(pool.submit(new BlockTask(block, dictionary, last, level)));
+                if (pending.size() >= maxPending)
+                    compressedSize += writeBlock(pending.removeFirst(), out);
+                if (last)
+                    break;
+                dictionary = Arrays.copyOfRange(block, block.length - DICTIONARY_SIZE, block.length);
+                block = next;
+            }
+            while (!pending.isEmpty())
+                compressedSize += writeBlock(pending.removeFirst(), out);
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Result(crc.getValue(), size, compressedSize);
+    }
+
+    private byte[] readBlock(InputStream in) throws IOException {
+        byte[] block = new byte[blockSize];
+        int filled = 0;
+        int read;
+        while (filled < blockSize && -1 != (read = in.read(block, filled, blockSize - filled))) {
+            filled += read;
+        }
+        return filled == blockSize ? block : Arrays.copyOf(block, filled);
+    }
+
+    private static int writeBlock(Future<byte[]> future, OutputStream out) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("block compression failed", e.getCause());
+        }
+        out.write(compressed);
+        return compressed.length;
+    }
+
+    public static class Result {
+        private long crc;
+        private long size;
+        private long compressedSize;
+
+        Result(long crc, long size, long compressedSize) {
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+    }
+
+    private static class BlockTask implements Callable<byte[]> {
+        private byte[] data;
+        private byte[] dictionary;
+        private boolean last;
+        private int level;
+
+        BlockTask(byte[] data, byte[] dictionary, boolean last, int level) {
+            this.data = data;
+            this.dictionary = dictionary;
+            this.last = last;
+            this.level = level;
+        }
+
+        public byte[] call() {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null)
+                    deflater.setDictionary(dictionary);
+                deflater.setInput(data);
+                ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length / 2 + 64);
+                byte[] buffer = new byte[16384];
+                int len;
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        len = deflater.deflate(buffer);
+                        bout.write(buffer, 0, len);
+                    }
+                } else {
+                    do {
+                        len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        bout.write(buffer, 0, len);
+                    } while (len == buffer.length);
+                }
+                return bout.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Packages a directory tree into a zip archive using a fork/join pool. The
+ * tree is walked in parallel, file contents are compressed in parallel ahead
+ * of the writer, and a single writer emits the entries in a deterministic
+ * (sorted, depth-first) order. Data waiting to be written is bounded by a
+ * memory cap; files larger than a chunk are not pre-compressed but streamed
+ * through a {@link ParallelDeflater} when their turn comes.
+ */
+public class ParallelDirectoryPackager {
+    public static final long DEFAULT_MEMORY_CAP = 64L * 1024 * 1024;
+    private static final long MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private int threads;
+    private long memoryCap;
+    private long chunkSize;
+    private CompressionPolicy policy;
+    private CompressedEntryCache cache;
+
+    /**
+     * @param threads
+     *            the number of worker threads
+     * @param memoryCap
+     *            the maximum number of bytes held in memory at once. A file
+     *            being compressed holds both its content and its deflated
+     *            data, so each file ahead of the writer is charged twice its
+     *            length.
+     * @param policy
+     *            the compression policy, or null to deflate every entry
+     */
+    public ParallelDirectoryPackager(int threads, long memoryCap, CompressionPolicy policy) {
+        this.threads = Math.max(1, threads);
+        this.memoryCap = Math.max(1, memoryCap);
+        this.chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, this.memoryCap / 2));
+        this.policy = policy;
+    }
+
+    /**
+     * Sets a cache of deflated file contents. Files that are unchanged since
+     * they were cached are copied from it without being compressed again.
+     *
+     * @param cache
+     *            the cache, or null to compress every file
+     */
+    public void setEntryCache(CompressedEntryCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Recursively inserts all files in a directory into a zip archive.
+     *
+     * @param directory
+     *            the source directory
+     * @param base
+     *            optional parent directory that should serve as the entry root
+     * @param dirPrefix
+     *            optional directory prefix to prepend onto each entry name
+     * @param zos
+     *            the zip archive to add the files to
+     * @throws IOException
+     */
+    public void addDirectory(File directory, File base, String dirPrefix,
+            RawZipOutputStream zos) throws IOException {
+        if (base == null)
+            base = directory;
+        if (dirPrefix == null)
+            dirPrefix = "";
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Item> items = pool.invoke(new WalkTask(directory, base, dirPrefix));
+            writeItems(items, pool, zos);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void writeItems(List<Item> items, ForkJoinPool pool, RawZipOutputStream zos)
+            throws IOException {
+        LinkedList<Future<CompressedEntry>> inFlight = new LinkedList<Future<CompressedEntry>>();
+        long inFlightBytes = 0;
+        int submitted = 0;
+        for (int i = 0; i < items.size(); i++) {
+            // keep compressing ahead of the writer while there is room
+            while (submitted < items.size()) {
+                Item next = items.get(submitted);
+                if (next.isPrecompressed()) {
+                    if (submitted > i && inFlightBytes + next.getCharge() > memoryCap)
+                        break;
+                    inFlight.add(pool.submit(new CompressTask(next)));
+                    inFlightBytes += next.getCharge();
+                }
+                submitted++;
+            }
+
+            Item item = items.get(i);
+            if (item.file == null) {
+                zos.putNextEntry(new ZipEntry(item.entryName));
+                zos.closeEntry();
+            } else if (item.isPrecompressed()) {
+                writeEntry(await(inFlight.removeFirst()), zos);
+                inFlightBytes -= item.getCharge();
+            } else {
+                ZipHelper.addFileToZip(item.file, item.entryName, zos, threads, policy, cache);
+            }
+        }
+    }
+
+    private static void writeEntry(CompressedEntry compressed, RawZipOutputStream zos)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(compressed.entryName);
+        entry.setTime(compressed.time);
+        entry.setCrc(compressed.crc);
+        entry.setSize(compressed.size);
+        if (compressed.stored) {
+            entry.setMethod(ZipEntry.STORED);
+            zos.putNextEntry(entry);
+        } else {
+            entry.setCompressedSize(compressed.data.length);
+            zos.putRawEntry(entry);
+        }
+        zos.write(compressed.data, 0, compressed.data.length);
+        zos.closeEntry();
+    }
+
+    private static CompressedEntry await(Future<CompressedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while packaging", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("packaging failed", e.getCause());
+        }
+    }
+
+    private class Item {
+        File file;
+        String entryName;
+        long length;
+
+        Item(File file, String entryName, long length) {
+            this.file = file;
+            this.entryName = entryName;
+            this.length = length;
+        }
+
+        boolean isPrecompressed() {
+            return file != null && length <= chunkSize;
+        }
+
+        /**
+         * @return the memory held while the file is compressed ahead of the
+         *         writer: its content and deflated data, which is at most
+         *         about as large
+         */
+        long getCharge() {
+            return 2 * length;
+        }
+    }
+
+    private static class CompressedEntry {
+        String entryName;
+        long time;
+        boolean stored;
+        long crc;
+        long size;
+        byte[] data;
+    }
+
+    private class WalkTask extends RecursiveTask<List<Item>> {
+        private File directory;
+        private File base;
+        private String dirPrefix;
+
+        WalkTask(File directory, File base, String dirPrefix) {
+            this.directory = directory;
+            this.base = base;
+            this.dirPrefix = dirPrefix;
+        }
+
+        @Override
+        protected List<Item> compute() {
+            List<Item> items = new ArrayList<Item>();
+            File[] files = directory.listFiles();
+            if (files == null)
+                return items;
+            Arrays.sort(files);
+
+            //add an entry for the directory itself
+            if (!base.equals(directory) && files.length == 0) {
+                String dirEntryPath = entryName(directory);
+                items.add(new Item(null, dirEntryPath.endsWith("/") ? dirEntryPath : dirEntryPath + "/", 0));
+                return items;
+            }
+
+            List<Object> children = new ArrayList<Object>();
+            for (File file : files) {
+                if (file.isHidden())
+                    continue;
+                if (file.isDirectory()) {
+                    WalkTask task = new WalkTask(file, base, dirPrefix);
+                    task.fork();
+                    children.add(task);
+                } else {
+                    children.add(new Item(file, entryName(file), file.length()));
+                }
+            }
+            for (Object child : children) {
+                if (child instanceof WalkTask)
+                    items.addAll(((WalkTask) child).join());
+                else
+                    items.add((Item) child);
+            }
+            return items;
+        }
+
+        private String entryName(File file) {
+            return dirPrefix
+                    + file.getPath().substring(base.getPath().length() + 1).replace('\\', '/');
+        }
+    }
+
+    private class CompressTask implements Callable<CompressedEntry> {
+        private Item item;
+
+        CompressTask(Item item) {
+            this.item = item;
+        }
+
+        public CompressedEntry call() throws IOException {
+            CompressedEntry entry = new CompressedEntry();
+            entry.entryName = item.entryName;
+            entry.time = item.file.lastModified();
+            int level = policy == null ? Deflater.DEFAULT_COMPRESSION
+                    : policy.getLevel(item.entryName, item.file);
+
+            if (cache != null && level != Deflater.NO_COMPRESSION) {
+                ZipEntry cached = cache.lookup(item.file, item.entryName, level);
+                if (cached != null) {
+                    entry.crc = cached.getCrc();
+                    entry.size = cached.getSize();
+                    entry.data = cache.readCached(item.file);
+                    return entry;
+                }
+            }
+
+            byte[] content;
+            FileInputStream in = new FileInputStream(item.file);
+            try {
+                content = StreamHelper.readAll(in);
+            } finally {
+                in.close();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.crc = crc.getValue();
+            entry.size = content.length;
+
+            if (level == Deflater.NO_COMPRESSION) {
+                entry.stored = true;
+                entry.data = content;
+                return entry;
+            }
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                ByteArrayOutputStream bout = new ByteArrayOutputStream(content.length / 2 + 64);
+                BufferPool pool = BufferPool.getDefault();
+                byte[] buffer = pool.acquire();
+                try {
+                    while (!deflater.finished()) {
+                        int len = deflater.deflate(buffer);
+                        bout.write(buffer, 0, len);
+                    }
+                } finally {
+                    pool.release(buffer);
+                }
+                entry.data = bout.toByteArray();
+            } finally {
+                deflater.end();
+            }
+            if (cache != null)
+                cache.store(item.file, level, entry.crc, entry.size, entry.data);
+            return entry;
+        }
+    }
+}
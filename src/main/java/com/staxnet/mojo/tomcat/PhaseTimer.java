@@ -0,0 +1,111 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the wall-clock time of the phases of a task, such as starting the
+ * server for bees:run, relative to the moment the timer was created. Phases
+ * may nest or overlap; they are reported in the order they started.
+ */
+public class PhaseTimer
+{
+    private long origin = System.nanoTime();
+    private List<Phase> phases = new ArrayList<Phase>();
+
+    /**
+     * Starts timing a phase.
+     *
+     * @param name
+     * @return the phase, to be ended with {@link Phase#end()}
+     */
+    public synchronized Phase start(String name)
+    {
+        Phase phase = new Phase(name, System.nanoTime());
+        phases.add(phase);
+        return phase;
+    }
+
+    /**
+     * @return a table of the phases with their start, relative to the timer,
+     *         and duration in milliseconds
+     */
+    public synchronized String formatTable()
+    {
+        int width = "phase".length();
+        for (Phase phase : phases)
+            width = Math.max(width, phase.name.length());
+        String row = "%-" + width + "s %10s %12s%n";
+        StringBuilder table = new StringBuilder();
+        table.append(String.format(row, "phase", "start ms", "duration ms"));
+        for (Phase phase : phases) {
+            table.append(String.format(row, phase.name, String.valueOf(toMillis(phase.start - origin)),
+                                       phase.end < 0 ? "running" : String.valueOf(phase.getMillis())));
+        }
+        table.append(String.format(row, "total", "", String.valueOf(toMillis(System.nanoTime() - origin))));
+        return table.toString();
+    }
+
+    /**
+     * Writes the table from {@link #formatTable()} to a file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(formatTable());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static long toMillis(long nanos)
+    {
+        return nanos / 1000000;
+    }
+
+    /**
+     * One timed phase.
+     */
+    public class Phase
+    {
+        private String name;
+        private long start;
+        private long end = -1;
+
+        Phase(String name, long start)
+        {
+            this.name = name;
+            this.start = start;
+        }
+
+        public void end()
+        {
+            synchronized (PhaseTimer.this) {
+                if (end < 0)
+                    end = System.nanoTime();
+            }
+        }
+
+        /**
+         * @return the duration of the phase, or so far if it has not ended
+         */
+        public long getMillis()
+        {
+            synchronized (PhaseTimer.this) {
+                return toMillis((end < 0 ? System.nanoTime() : end) - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A minimal zip writer that works like {@link java.util.zip.ZipOutputStream}
+ * but can also accept entries whose payload has already been deflated
+ * elsewhere (for instance by {@link ParallelDeflater}). Raw entries are copied
+ * to the archive verbatim.
+ *
+ * When constructed with the file channel it writes to, STORED entries may
+ * also be added without knowing their crc and size in advance; both are
+ * computed while the data streams through and patched into the local header
+ * afterwards.
+ *
+ * As with {@link java.util.zip.ZipOutputStream}, zip64 extensions are
+ * written for entries of 4 GB or more, entries that start beyond 4 GB and
+ * archives of more than 65535 entries. A STORED entry that may reach 4 GB
+ * must have its size set up front; only its crc can be patched in.
+ */
+public class RawZipOutputStream extends OutputStream {
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final int MODE_NONE = 0;
+    private static final int MODE_STORED = 1;
+    private static final int MODE_DEFLATED = 2;
+    private static final int MODE_RAW = 3;
+
+    private OutputStream out;
+    private FileChannel channel;
+    private long channelBase;
+    private long written = 0;
+    private List<EntryRecord> entries = new ArrayList<EntryRecord>();
+    private Set<String> names = new HashSet<String>();
+    private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] deflateBuffer = new byte[8192];
+    private CRC32 crc = new CRC32();
+    private byte[] header = new byte[64];
+
+    private int mode = MODE_NONE;
+    private EntryRecord current;
+    private long entrySize;
+    private long entryDataStart;
+    private boolean finished = false;
+
+    public RawZipOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @param out
+     *            the (usually buffered) stream to write to
+     * @param channel
+     *            the channel that out ultimately writes to, used to patch
+     *            local headers of STORED entries
+     * @throws IOException
+     */
+    public RawZipOutputStream(OutputStream out, FileChannel channel) throws IOException {
+        this.out = out;
+        this.channel = channel;
+        this.channelBase = channel.position();
+    }
+
+    /**
+     * @return whether STORED entries may be started without their crc and size
+     */
+    public boolean canPatchHeaders() {
+        return channel != null;
+    }
+
+    /**
+     * Sets the compression level used for subsequent DEFLATED entries.
+     *
+     * @param level
+     */
+    public void setLevel(int level) {
+        deflater.setLevel(level);
+    }
+
+    /**
+     * Begins a new entry. DEFLATED entries (the default) are compressed by this
+     * stream. STORED entries must have their size and crc set up front, as
+     * with {@link java.util.zip.ZipOutputStream}, unless this stream was
+     * given a file channel. Setting just the size up front is enough in that
+     * case, and required if the entry may reach 4 GB.
+     *
+     * @param entry
+     * @throws IOException
+     */
+    public void putNextEntry(ZipEntry entry) throws IOException {
+        int method = entry.getMethod() == -1 ? ZipEntry.DEFLATED : entry.getMethod();
+        if (method == ZipEntry.STORED) {
+            if ((entry.getSize() == -1 || entry.getCrc() == -1) && channel == null)
+                throw new ZipException("STORED entry missing size or crc: " + entry.getName());
+            startEntry(entry, ZipEntry.STORED, false, MODE_STORED);
+        } else {
+            startEntry(entry, ZipEntry.DEFLATED, true, MODE_DEFLATED);
+        }
+    }
+
+    /**
+     * Begins a DEFLATED entry whose data will be written as raw deflate bytes.
+     * If the entry already carries its crc, size and compressed size they are
+     * written into the local header; otherwise {@link #closeRawEntry(long, long)}
+     * must be used to finish the entry.
+     *
+     * @param entry
+     * @throws IOException
+     */
+    public void putRawEntry(ZipEntry entry) throws IOException {
+        boolean known = entry.getCrc() != -1 && entry.getSize() != -1
+                && entry.getCompressedSize() != -1;
+        startEntry(entry, ZipEntry.DEFLATED, !known, MODE_RAW);
+    }
+
+    /**
+     * Completes a raw entry whose checksum and size were not known when it was
+     * started.
+     *
+     * @param crc
+     *            the crc of the uncompressed data
+     * @param size
+     *            the uncompressed size
+     * @throws IOException
+     */
+    public void closeRawEntry(long crc, long size) throws IOException {
+        if (mode != MODE_RAW)
+            throw new ZipException("no raw entry is open");
+        current.crc = crc;
+        current.size = size;
+        closeEntry();
+    }
+
+    public void closeEntry() throws IOException {
+        if (mode == MODE_NONE)
+            return;
+        EntryRecord e = current;
+        switch (mode) {
+        case MODE_DEFLATED:
+            deflater.finish();
+            while (!deflater.finished())
+                writeDeflated();
+            e.crc = crc.getValue();
+            e.size = deflater.getBytesRead();
+            e.compressedSize = deflater.getBytesWritten();
+            deflater.reset();
+            break;
+        case MODE_STORED:
+            if (e.size == -1 || e.crc == -1) {
+                boolean sizeKnown = e.size != -1;
+                if (!sizeKnown)
+                    e.size = entrySize;
+                e.crc = crc.getValue();
+                patchLocalHeader(e, sizeKnown);
+            }
+            if (entrySize != e.size)
+                throw new ZipException("invalid size for STORED entry " + e.name
+                        + ": expected " + e.size + " but got " + entrySize);
+            if (crc.getValue() != e.crc)
+                throw new ZipException("invalid crc for STORED entry " + e.name);
+            e.compressedSize = entrySize;
+            break;
+        case MODE_RAW:
+            long compressed = written - entryDataStart;
+            if (e.compressedSize != -1 && e.compressedSize != compressed)
+                throw new ZipException("invalid compressed size for entry " + e.name);
+            if (e.crc == -1 || e.size == -1)
+                throw new ZipException("crc and size required to close raw entry " + e.name);
+            e.compressedSize = compressed;
+            break;
+        }
+        if ((e.flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            putInt(header, 0, DATA_DESCRIPTOR_SIG);
+            putInt(header, 4, e.crc);
+            if (e.size >= MAX_SIZE || e.compressedSize >= MAX_SIZE) {
+                // readers expect 8 byte sizes once either has overflowed,
+                // as written by java.util.zip.ZipOutputStream
+                putLong(header, 8, e.compressedSize);
+                putLong(header, 16, e.size);
+                writeBytes(header, 0, 24);
+            } else {
+                putInt(header, 8, e.compressedSize);
+                putInt(header, 12, e.size);
+                writeBytes(header, 0, 16);
+            }
+        }
+        entries.add(e);
+        current = null;
+        mode = MODE_NONE;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        switch (mode) {
+        case MODE_NONE:
+            throw new ZipException("no current zip entry");
+        case MODE_DEFLATED:
+            crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput())
+                writeDeflated();
+            break;
+        case MODE_STORED:
+            crc.update(b, off, len);
+            entrySize += len;
+            writeBytes(b, off, len);
+            break;
+        default:
+            writeBytes(b, off, len);
+        }
+    }
+
+    /**
+     * Writes the central directory without closing the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        closeEntry();
+        long cdStart = written;
+        byte[] extra = new byte[28];
+        for (EntryRecord e : entries) {
+            // values that overflow their field move to the zip64 extra field
+            int extraLength = 0;
+            if (e.size >= MAX_SIZE)
+                extraLength = putLong(extra, extraLength + 4, e.size) - 4;
+            if (e.compressedSize >= MAX_SIZE)
+                extraLength = putLong(extra, extraLength + 4, e.compressedSize) - 4;
+            if (e.offset >= MAX_SIZE)
+                extraLength = putLong(extra, extraLength + 4, e.offset) - 4;
+            int version = extraLength > 0 ? VERSION_ZIP64 : VERSION;
+            putInt(header, 0, CENTRAL_HEADER_SIG);
+            putShort(header, 4, version);
+            putShort(header, 6, version);
+            putShort(header, 8, e.flags);
+            putShort(header, 10, e.method);
+            putInt(header, 12, e.dosTime);
+            putInt(header, 16, e.crc);
+            putInt(header, 20, Math.min(e.compressedSize, MAX_SIZE));
+            putInt(header, 24, Math.min(e.size, MAX_SIZE));
+            putShort(header, 28, e.nameBytes.length);
+            putShort(header, 30, extraLength > 0 ? extraLength + 4 : 0);
+            putShort(header, 32, 0);
+            putShort(header, 34, 0);
+            putShort(header, 36, 0);
+            putInt(header, 38, 0);
+            putInt(header, 42, Math.min(e.offset, MAX_SIZE));
+            writeBytes(header, 0, 46);
+            writeBytes(e.nameBytes, 0, e.nameBytes.length);
+            if (extraLength > 0) {
+                putShort(extra, 0, ZIP64_EXTRA_ID);
+                putShort(extra, 2, extraLength);
+                writeBytes(extra, 0, extraLength + 4);
+            }
+        }
+        long cdEnd = written;
+        long cdSize = cdEnd - cdStart;
+        if (entries.size() >= MAX_ENTRIES || cdStart >= MAX_SIZE || cdSize >= MAX_SIZE) {
+            putInt(header, 0, ZIP64_END_SIG);
+            putLong(header, 4, 44);
+            putShort(header, 12, VERSION_ZIP64);
+            putShort(header, 14, VERSION_ZIP64);
+            putInt(header, 16, 0);
+            putInt(header, 20, 0);
+            putLong(header, 24, entries.size());
+            putLong(header, 32, entries.size());
+            putLong(header, 40, cdSize);
+            putLong(header, 48, cdStart);
+            writeBytes(header, 0, 56);
+
+            putInt(header, 0, ZIP64_LOCATOR_SIG);
+            putInt(header, 4, 0);
+            putLong(header, 8, cdEnd);
+            putInt(header, 16, 1);
+            writeBytes(header, 0, 20);
+        }
+        putInt(header, 0, END_SIG);
+        putShort(header, 4, 0);
+        putShort(header, 6, 0);
+        putShort(header, 8, Math.min(entries.size(), MAX_ENTRIES));
+        putShort(header, 10, Math.min(entries.size(), MAX_ENTRIES));
+        putInt(header, 12, Math.min(cdSize, MAX_SIZE));
+        putInt(header, 16, Math.min(cdStart, MAX_SIZE));
+        putShort(header, 20, 0);
+        writeBytes(header, 0, 22);
+        out.flush();
+        deflater.end();
+        finished = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void startEntry(ZipEntry entry, int method, boolean descriptor, int newMode)
+            throws IOException {
+        if (finished)
+            throw new ZipException("zip stream already finished");
+        closeEntry();
+        if (!names.add(entry.getName()))
+            throw new ZipException("duplicate entry: " + entry.getName());
+
+        EntryRecord e = new EntryRecord();
+        e.name = entry.getName();
+        e.nameBytes = entry.getName().getBytes("UTF-8");
+        e.method = method;
+        e.flags = FLAG_UTF8 | (descriptor ? FLAG_DATA_DESCRIPTOR : 0);
+        e.dosTime = toDosTime(entry.getTime() == -1 ? System.currentTimeMillis() : entry.getTime());
+        e.offset = written;
+        e.crc = entry.getCrc();
+        e.size = entry.getSize();
+        e.compressedSize = method == ZipEntry.STORED ? entry.getSize() : entry.getCompressedSize();
+        // sizes known up front that overflow go in a zip64 extra field
+        boolean zip64 = !descriptor && (e.size >= MAX_SIZE || e.compressedSize >= MAX_SIZE);
+
+        putInt(header, 0, LOCAL_HEADER_SIG);
+        putShort(header, 4, zip64 ? VERSION_ZIP64 : VERSION);
+        putShort(header, 6, e.flags);
+        putShort(header, 8, method);
+        putInt(header, 10, e.dosTime);
+        // unknown values are zero here and either follow in a data
+        // descriptor or are patched in once the entry is closed
+        putInt(header, 14, descriptor || e.crc == -1 ? 0 : e.crc);
+        if (zip64) {
+            putInt(header, 18, MAX_SIZE);
+            putInt(header, 22, MAX_SIZE);
+        } else {
+            putInt(header, 18, descriptor || e.compressedSize == -1 ? 0 : e.compressedSize);
+            putInt(header, 22, descriptor || e.size == -1 ? 0 : e.size);
+        }
+        putShort(header, 26, e.nameBytes.length);
+        putShort(header, 28, zip64 ? 20 : 0);
+        writeBytes(header, 0, 30);
+        writeBytes(e.nameBytes, 0, e.nameBytes.length);
+        if (zip64) {
+            putShort(header, 0, ZIP64_EXTRA_ID);
+            putShort(header, 2, 16);
+            putLong(header, 4, e.size);
+            putLong(header, 12, e.compressedSize);
+            writeBytes(header, 0, 20);
+        }
+
+        current = e;
+        mode = newMode;
+        crc.reset();
+        entrySize = 0;
+        entryDataStart = written;
+    }
+
+    /**
+     * Writes the crc of a STORED entry, and its sizes unless they were known
+     * when the header was written, into the entry's local header.
+     */
+    private void patchLocalHeader(EntryRecord e, boolean sizeKnown) throws IOException {
+        if (!sizeKnown && e.size >= MAX_SIZE)
+            throw new ZipException("STORED entry of 4 GB or more must have its size set up front: "
+                    + e.name);
+        out.flush();
+        byte[] sizes = new byte[12];
+        putInt(sizes, 0, e.crc);
+        putInt(sizes, 4, e.size);
+        putInt(sizes, 8, e.size);
+        ByteBuffer buffer = ByteBuffer.wrap(sizes, 0, sizeKnown ? 4 : 12);
+        long position = channelBase + e.offset + 14;
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private void writeDeflated() throws IOException {
+        int len = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+        if (len > 0)
+            writeBytes(deflateBuffer, 0, len);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, long v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    /**
+     * @return the offset after the value
+     */
+    private static int putLong(byte[] b, int off, long v) {
+        putInt(b, off, v);
+        putInt(b, off + 4, v >>> 32);
+        return off + 8;
+    }
+
+    private static long toDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21)
+                | (cal.get(Calendar.DAY_OF_MONTH) << 16)
+                | (cal.get(Calendar.HOUR_OF_DAY) << 11)
+                | (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+    }
+
+    private static class EntryRecord {
+        String name;
+        byte[] nameBytes;
+        int method;
+        int flags;
+        long dosTime;
+        long offset;
+        long crc;
+        long size;
+        long compressedSize;
+    }
+}
@@ -5,9 +5,23 @@ package com.staxnet.mojo.tomcat;
 //       http://www.apache.org/licenses/LICENSE-2.0 
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 
 import javax.servlet.ServletException;
@@ -15,6 +29,7 @@ import javax.servlet.ServletException;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 
 import com.staxnet.appserver.StaxAppServer;
 import com.staxnet.appserver.StaxSdkAppServer;
@@ -25,6 +40,26 @@ import com.staxnet.appserver.config.AppConfigHelper;
  * Runs the current project as a dynamic web application using an embedded
  * Tomcat server.
  * 
+ * With bees.watch set, the classes directory and the web resources directory
+ * are watched while the server runs. Changed static resources are served in
+ * place; when classes, libraries or web.xml change, the web application
+ * context is reloaded, keeping the server and the JVM running. Classes the
+ * server loads from the class path above the context, rather than through
+ * the context's own loader, keep their old versions until bees:run is
+ * restarted.
+ * 
+ * The dependency jars are indexed in the configuration directory by path,
+ * size and modification time. Jars without tag libraries, web fragments or
+ * container initializers are excluded from the container's jar scan, and
+ * only new or changed jars are opened to find out.
+ * 
+ * With bees.fork set, the server runs in a child JVM with its own heap and
+ * garbage collector settings. Its loaded classes are archived for class data
+ * sharing on the first run, so that later runs start faster.
+ * 
+ * With bees.profile set, a flight recording of the server's JVM and the
+ * timings of the startup phases are written to target/bees-run-profile.
+ * 
  * @goal run
  * @execute phase = "compile"
  * @requiresDependencyResolution runtime
@@ -32,6 +67,18 @@ import com.staxnet.appserver.config.AppConfigHelper;
  */
 public class RunMojo extends AbstractI18NMojo
 {
+    /**
+     * The system properties Tomcat 7 and Tomcat 6 read the jars to leave out
+     * of their jar scans from.
+     */
+    private static final String[] JARS_TO_SKIP_PROPERTIES = new String[] {
+        "tomcat.util.scan.DefaultJarScanner.jarsToSkip",
+        "org.apache.catalina.startup.TldConfig.jarsToSkip" };
+
+    private static final long STARTUP_TIMEOUT = 10 * 60 * 1000;
+
+    private static final int SIGTERM_EXIT_CODE = 143;
+
     // ----------------------------------------------------------------------
     // Mojo Parameters
     // ----------------------------------------------------------------------
@@ -88,6 +135,28 @@ public class RunMojo extends AbstractI18NMojo
      */
     private String warSourceDirectory;
 
+    /**
+     * Run the packaged war file instead of the web resources directory. The
+     * war is extracted into the configuration directory on several threads
+     * whenever it has changed; the package phase must have built it. The
+     * classes and libraries are then loaded from the extracted war alone, and
+     * bees.watch does not apply, as the server no longer reads the classes
+     * and web resources directories.
+     * 
+     * @parameter expression="${bees.runPackage}" default-value = "false"
+     */
+    private boolean runPackage;
+
+    /**
+     * The package output file.
+     * 
+     * @parameter default-value =
+     *            "${project.build.directory}/${project.build.finalName}.${project.packaging}"
+     * @required
+     * @readonly
+     */
+    private File warFile;
+
     /**
      * The path to the Stax deployment descriptor.
      * 
@@ -119,6 +188,113 @@ public class RunMojo extends AbstractI18NMojo
      */
     private String baseDir;
 
+    /**
+     * Reload the web application when its classes or resources change.
+     * 
+     * @parameter expression="${bees.watch}" default-value = "false"
+     */
+    private boolean watch;
+
+    /**
+     * How long, in milliseconds, the watched directories must be quiet before
+     * a burst of changes is acted on.
+     * 
+     * @parameter expression="${bees.watchDebounce}" default-value = "500"
+     */
+    private int watchDebounce;
+
+    /**
+     * Exclude dependency jars the index shows have nothing to scan from the
+     * container's jar scan.
+     * 
+     * @parameter expression="${bees.scanIndex}" default-value = "true"
+     */
+    private boolean scanIndex;
+
+    /**
+     * Run the server in a forked JVM rather than in the Maven JVM.
+     * 
+     * @parameter expression="${bees.fork}" default-value = "false"
+     */
+    private boolean fork;
+
+    /**
+     * The maximum heap of the forked JVM, such as 512m or 2g.
+     * 
+     * @parameter expression="${bees.heap}"
+     */
+    private String heap;
+
+    /**
+     * The garbage collector of the forked JVM: G1, Parallel, Serial or Z.
+     * 
+     * @parameter expression="${bees.gc}"
+     */
+    private String gc;
+
+    /**
+     * Further options for the forked JVM, separated by spaces.
+     * 
+     * @parameter expression="${bees.jvmArgs}"
+     */
+    private String jvmArgs;
+
+    /**
+     * Archive the forked JVM's classes for class data sharing.
+     * 
+     * @parameter expression="${bees.cds}" default-value = "true"
+     */
+    private boolean cds;
+
+    /**
+     * The class data sharing archive of the forked JVM.
+     * 
+     * @parameter default-value = "${project.build.directory}/bees-run.jsa"
+     */
+    private File cdsArchive;
+
+    /**
+     * Record the server with Java Flight Recorder and report how long each
+     * startup phase took.
+     * 
+     * @parameter expression="${bees.profile}" default-value = "false"
+     */
+    private boolean profile;
+
+    /**
+     * Where the flight recording and the phase timings are written.
+     * 
+     * @parameter default-value = "${project.build.directory}/bees-run-profile"
+     */
+    private File profileDirectory;
+
+    /**
+     * The timings of the startup phases.
+     */
+    private PhaseTimer phases = new PhaseTimer();
+
+    /**
+     * The server's class path, as URLs, once prepared.
+     */
+    private List<String> classdirs;
+
+    /**
+     * The application environments, once prepared.
+     */
+    private String[] environments;
+
+    /**
+     * Whether the application is run from its deployment descriptors rather
+     * than as a plain web application.
+     */
+    private boolean ear;
+
+    /**
+     * The names of the jars the container does not need to scan, separated
+     * by commas, once prepared; null to scan every jar.
+     */
+    private String jarsToSkip;
+
     /**
      * Gets whether this project uses WAR packaging.
      * 
@@ -140,37 +316,35 @@ public class RunMojo extends AbstractI18NMojo
             return;
         }
 
-        appConfig =
-            MojoUtils.findDeploymentDescriptor(appConfig, baseDir,
-                warSourceDirectory);
-
         try {
-            // add classes directory to loader
-            ArrayList<String> classdirs = new ArrayList<String>();
-            if (classesDir != null)
-                classdirs.add(new File(classesDir).toURI().toURL().toString());
+            prepareServer();
+            if (fork) {
+                reportStartup(phases.start("server start"));
+                runForked();
+                return;
+            }
 
-            // add artifacts to loader
-            if (dependencies != null) {
-                for (Iterator<Artifact> iterator = dependencies.iterator(); iterator
-                    .hasNext();)
+            if (profile)
+                startFlightRecording();
+            if (watch)
+                WebappReloader.watch(getLog(), classesDir, warSourceDirectory, watchDebounce);
+            reportStartup(phases.start("server start"));
+            
+            Map<String, String> previous = setJarsToSkip();
+            try {
+                if (ear)
                 {
-                    Artifact artifact = iterator.next();
-                    classdirs.add(artifact.getFile().toURI().toURL().toString());
+                    runEar(getLog(), baseDir, configurationDir,
+                        getClass().getClassLoader(), classdirs
+                            .toArray(new String[0]), port, appserverxml, appConfig,
+                        appxml, environments);
+                } else {
+                    runWar(getLog(), configurationDir, warSourceDirectory, 
+                        getClass().getClassLoader(), classdirs.toArray(new String[0]), port,
+                        environments, appserverxml);
                 }
-            }
-            
-            if (appConfig != null && appConfig.exists() && appxml != null &&
-                appxml.exists())
-            {
-                runEar(baseDir, configurationDir,
-                    getClass().getClassLoader(), classdirs
-                        .toArray(new String[0]), port, appserverxml, appConfig,
-                    appxml, getEnvironments());
-            } else {
-                runWar(configurationDir, warSourceDirectory, 
-                    getClass().getClassLoader(), classdirs.toArray(new String[0]), port,
-                    getEnvironments());
+            } finally {
+                restoreProperties(previous);
             }
         } catch (IOException exception) {
             throw new MojoExecutionException(
@@ -181,19 +355,91 @@ public class RunMojo extends AbstractI18NMojo
         }
     }
 
-    private void runEar(String baseDir, String configurationDir,
+    /**
+     * Assembles the server's class path and resolves the environments.
+     */
+    void prepareServer() throws Exception
+    {
+        if (runPackage) {
+            PhaseTimer.Phase extract = phases.start("war extraction");
+            warSourceDirectory = extractWar().getPath();
+            extract.end();
+            if (watch) {
+                getLog().warn("bees.watch does not apply to bees.runPackage, repackage the war to pick up changes");
+                watch = false;
+            }
+        }
+
+        appConfig =
+            MojoUtils.findDeploymentDescriptor(appConfig, baseDir,
+                warSourceDirectory);
+
+        PhaseTimer.Phase classpath = phases.start("classpath assembly");
+        classdirs = new ArrayList<String>();
+        List<File> jars = new ArrayList<File>();
+        if (runPackage) {
+            // the web application loads WEB-INF/classes and WEB-INF/lib
+            // from the extracted war, so they are not added to the loader
+            File[] libs = new File(warSourceDirectory, "WEB-INF/lib").listFiles();
+            if (libs != null) {
+                for (File lib : libs) {
+                    if (lib.isFile() && lib.getName().endsWith(".jar"))
+                        jars.add(lib);
+                }
+            }
+        } else {
+            // add classes directory to loader
+            if (classesDir != null)
+                classdirs.add(new File(classesDir).toURI().toURL().toString());
+            addDependencies(jars);
+        }
+        classpath.end();
+
+        if (scanIndex) {
+            PhaseTimer.Phase scan = phases.start("classpath scan index");
+            skipUnscannedJars(jars);
+            scan.end();
+        }
+
+        PhaseTimer.Phase resolve = phases.start("environment resolution");
+        environments = getEnvironments();
+        resolve.end();
+
+        ear = appConfig != null && appConfig.exists() && appxml != null &&
+            appxml.exists();
+    }
+
+    /**
+     * Adds the dependencies to the server's class path, collecting the jars
+     * among them for the scan index.
+     */
+    private void addDependencies(List<File> jars) throws IOException
+    {
+        if (dependencies == null)
+            return;
+        for (Iterator<Artifact> iterator = dependencies.iterator(); iterator
+            .hasNext();)
+        {
+            Artifact artifact = iterator.next();
+            classdirs.add(artifact.getFile().toURI().toURL().toString());
+            if (artifact.getFile().isFile())
+                jars.add(artifact.getFile());
+        }
+    }
+
+    static void runEar(Log log, String baseDir, String configurationDir,
         ClassLoader cl, String[] classdirs, int port, File serverXml,
         File appConfig, File appxml, String[] environments) throws ServletException
     {
         StaxAppServer appServer =
             new StaxAppServer(baseDir, configurationDir, cl, classdirs,
                 serverXml, port, appConfig, appxml, environments, null);
-        getLog().info("application environment: " + StringHelper.join(environments, ","));
+        log.info("application environment: " + StringHelper.join(environments, ","));
         appServer.start();
     }
 
-    private void runWar(String workingDir, String webappDir, ClassLoader cl,
-        String[] classdirs, int port, String[] environments) throws Exception
+    static void runWar(Log log, String workingDir, String webappDir, ClassLoader cl,
+        String[] classdirs, int port, String[] environments, File appserverxml) throws Exception
     {
         ArrayList<String> args = new ArrayList<String>();
         args.add("-dir");
@@ -205,7 +451,7 @@ public class RunMojo extends AbstractI18NMojo
         if (environments != null && environments.length > 0) {
             args.add("-env");
             args.add(StringHelper.join(environments, ","));
-            getLog().info("application environment: " + StringHelper.join(environments, ","));
+            log.info("application environment: " + StringHelper.join(environments, ","));
         }
         
         if(appserverxml != null && appserverxml.exists())
@@ -218,6 +464,347 @@ public class RunMojo extends AbstractI18NMojo
             cl);
     }
 
+    /**
+     * Extracts the packaged war into the configuration directory, unless the
+     * war is unchanged since it was last extracted there.
+     *
+     * @return the directory the war was extracted into
+     */
+    private File extractWar() throws IOException
+    {
+        if (!warFile.isFile())
+            throw new FileNotFoundException(warFile + " does not exist; run the package phase first");
+        File directory = new File(configurationDir, "webapp");
+        File stamp = new File(configurationDir, "webapp.extracted");
+        String key = warFile.getAbsolutePath() + "," + warFile.length() + "," + warFile.lastModified();
+        if (directory.isDirectory() && stamp.isFile()) {
+            FileInputStream in = new FileInputStream(stamp);
+            try {
+                if (key.equals(new String(StreamHelper.readAll(in), "UTF-8"))) {
+                    getLog().info("using " + directory + ", extracted from the unchanged " + warFile);
+                    return directory;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        stamp.delete();
+        delete(directory);
+        ZipHelper.unzipFile(warFile, directory, Runtime.getRuntime().availableProcessors());
+        FileOutputStream out = new FileOutputStream(stamp);
+        try {
+            out.write(key.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        getLog().info(String.format("extracted %s in %d ms", warFile, System.currentTimeMillis() - start));
+        return directory;
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Finds the jars the container does not need to scan, using the scan
+     * index in the configuration directory.
+     */
+    private void skipUnscannedJars(List<File> jars) throws IOException
+    {
+        jarsToSkip = null;
+        long start = System.currentTimeMillis();
+        ClasspathScanIndex index =
+            new ClasspathScanIndex(new File(configurationDir, "classpath-index.properties"));
+        Set<String> skippable = new LinkedHashSet<String>();
+        Set<String> scanned = new HashSet<String>();
+        boolean initializers = false;
+        for (File jar : jars) {
+            ClasspathScanIndex.JarScan scan = index.scan(jar);
+            if (scan.isSkippable())
+                skippable.add(jar.getName());
+            else
+                scanned.add(jar.getName());
+            initializers |= scan.hasInitializer();
+        }
+        index.save();
+        // the container skips jars by name, so a name shared with a jar that
+        // has something to scan must not be skipped
+        skippable.removeAll(scanned);
+        getLog().info(String.format(
+            "indexed %d dependency jars in %d ms (index: %d hits, %d misses), %d without anything to scan",
+            jars.size(), System.currentTimeMillis() - start, index.getHits(),
+            index.getMisses(), skippable.size()));
+
+        if (initializers) {
+            // initializers may ask for classes from any jar
+            getLog().info("container initializers found, every jar will be scanned");
+            return;
+        }
+        if (!skippable.isEmpty())
+            jarsToSkip = StringHelper.join(skippable.toArray(new String[0]), ",");
+    }
+
+    /**
+     * Gets the value the container should read from one of the jarsToSkip
+     * properties: the jars the user already skips and the jars found by the
+     * scan index.
+     *
+     * @return the value, or null if no jar is skipped
+     */
+    private String getJarsToSkip(String property)
+    {
+        String skipped = System.getProperty(property);
+        if (jarsToSkip == null)
+            return skipped;
+        return skipped == null || skipped.equals("") ? jarsToSkip : skipped + "," + jarsToSkip;
+    }
+
+    /**
+     * Sets the jarsToSkip properties for a server run in this JVM.
+     *
+     * @return the values to restore once the server has stopped
+     */
+    private Map<String, String> setJarsToSkip()
+    {
+        Map<String, String> previous = new HashMap<String, String>();
+        if (jarsToSkip == null)
+            return previous;
+        for (String property : JARS_TO_SKIP_PROPERTIES) {
+            previous.put(property, System.getProperty(property));
+            System.setProperty(property, getJarsToSkip(property));
+        }
+        return previous;
+    }
+
+    private static void restoreProperties(Map<String, String> previous)
+    {
+        for (Map.Entry<String, String> entry : previous.entrySet()) {
+            if (entry.getValue() == null)
+                System.clearProperty(entry.getKey());
+            else
+                System.setProperty(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Runs the server in a child JVM until it exits, or until Maven is
+     * stopped.
+     */
+    private void runForked() throws Exception
+    {
+        final Process process = startForked();
+        Thread stopper = new Thread("bees-run-stop")
+        {
+            public void run()
+            {
+                stopForked(process);
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(stopper);
+        int exitCode = process.waitFor();
+        try {
+            Runtime.getRuntime().removeShutdownHook(stopper);
+        } catch (IllegalStateException e) {
+            // already shutting down
+        }
+        if (exitCode != 0 && exitCode != SIGTERM_EXIT_CODE)
+            throw new MojoExecutionException("the forked server exited with status " + exitCode);
+    }
+
+    /**
+     * Stops a forked server and waits for it to exit.
+     */
+    static void stopForked(Process process)
+    {
+        // a graceful stop lets the JVM write its class data sharing archive
+        process.destroy();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            // exiting anyway
+        }
+    }
+
+    /**
+     * Starts the server in a child JVM, sharing this process's console.
+     * {@link #prepareServer()} must have been called.
+     *
+     * @return the child process
+     */
+    Process startForked() throws Exception
+    {
+        Properties settings = new Properties();
+        settings.setProperty("baseDir", baseDir);
+        settings.setProperty("configurationDir", configurationDir);
+        settings.setProperty("port", String.valueOf(port));
+        settings.setProperty("classdirs", StringHelper.join(classdirs.toArray(new String[0]), "\n"));
+        settings.setProperty("environments", StringHelper.join(environments, ","));
+        settings.setProperty("watch", String.valueOf(watch));
+        settings.setProperty("watchDebounce", String.valueOf(watchDebounce));
+        if (classesDir != null)
+            settings.setProperty("classesDir", classesDir);
+        if (warSourceDirectory != null)
+            settings.setProperty("warSourceDirectory", warSourceDirectory);
+        if (appserverxml != null && appserverxml.exists())
+            settings.setProperty("serverXml", appserverxml.getAbsolutePath());
+        if (ear) {
+            settings.setProperty("appConfig", appConfig.getAbsolutePath());
+            settings.setProperty("appxml", appxml.getAbsolutePath());
+        }
+        File settingsFile = new File(configurationDir, "fork.properties");
+        settingsFile.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(settingsFile);
+        try {
+            settings.store(fos, "bees:run forked server");
+        } finally {
+            fos.close();
+        }
+
+        String classpath = getForkClasspath();
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        if (heap != null && !heap.equals(""))
+            command.add("-Xmx" + heap);
+        if (gc != null && !gc.equals(""))
+            command.add("-XX:+Use" + gc + "GC");
+        if (jvmArgs != null && !jvmArgs.trim().equals(""))
+            command.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+        if (cds)
+            command.addAll(new ClassDataSharing(cdsArchive).getJvmArgs(classpath, getLog()));
+        if (profile) {
+            FlightRecording recording = getFlightRecording();
+            command.add(recording.getJvmArg());
+            getLog().info("recording the forked server to " + recording.getFile());
+        }
+        for (String property : JARS_TO_SKIP_PROPERTIES) {
+            String skipped = getJarsToSkip(property);
+            if (skipped != null)
+                command.add("-D" + property + "=" + skipped);
+        }
+        command.add("-cp");
+        command.add(classpath);
+        command.add(ForkedServer.class.getName());
+        command.add(settingsFile.getAbsolutePath());
+        getLog().debug("forking " + command);
+
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * The class path of the plugin: its own jars and the Maven API it uses.
+     */
+    private String getForkClasspath() throws Exception
+    {
+        Set<String> entries = new LinkedHashSet<String>();
+        ClassLoader loader = getClass().getClassLoader();
+        if (loader instanceof URLClassLoader) {
+            for (URL url : ((URLClassLoader) loader).getURLs())
+                entries.add(new File(url.toURI()).getPath());
+        }
+        for (Class<?> type : new Class<?>[] { ForkedServer.class, StaxAppServer.class, Log.class })
+            entries.add(new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+        return StringHelper.join(entries.toArray(new String[0]), File.pathSeparator);
+    }
+
+    private FlightRecording getFlightRecording()
+    {
+        return new FlightRecording(new File(profileDirectory, "bees-run.jfr"));
+    }
+
+    private void startFlightRecording()
+    {
+        FlightRecording recording = getFlightRecording();
+        try {
+            recording.start();
+            getLog().info("recording the server to " + recording.getFile()
+                          + ", written when Maven exits");
+        } catch (Exception e) {
+            getLog().warn("could not start a flight recording, this JVM may not support it: " + e);
+        }
+    }
+
+    /**
+     * Logs how long the server took to accept connections, once it does,
+     * and the startup phase timings when profiling.
+     */
+    private void reportStartup(final PhaseTimer.Phase serverStart)
+    {
+        Thread thread = new DaemonThreadFactory("bees-startup").newThread(new Runnable()
+        {
+            public void run()
+            {
+                long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+                while (System.currentTimeMillis() < deadline) {
+                    if (isListening(port)) {
+                        serverStart.end();
+                        getLog().info("server started in " + serverStart.getMillis()
+                                      + " ms, listening on port " + port);
+                        reportPhases();
+                        return;
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * @return whether a server accepts connections on the local port
+     */
+    static boolean isListening(int port)
+    {
+        try {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("localhost", port), 1000);
+                return true;
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    int getPort()
+    {
+        return port;
+    }
+
+    void setPort(int port)
+    {
+        this.port = port;
+    }
+
+    private void reportPhases()
+    {
+        String table = phases.formatTable();
+        if (!profile) {
+            getLog().debug("startup phases:\n" + table);
+            return;
+        }
+        getLog().info("startup phases:\n" + table);
+        File file = new File(profileDirectory, "phases.txt");
+        try {
+            phases.write(file);
+        } catch (IOException e) {
+            getLog().warn("could not write " + file + ": " + e);
+        }
+    }
+
     private String[] getEnvironments()
     {
         String envString =
@@ -234,8 +821,10 @@ public class RunMojo extends AbstractI18NMojo
                     : null;
             if(appConfigPath != null)
             {
+                PhaseTimer.Phase load = phases.start("AppConfigHelper.load");
                 AppConfigHelper.load(appConfig, appConfigPath, new String[0],
                     new String[0]);
+                load.end();
             }
 
             envString = appConfig.getDefaultEnvironment();
@@ -2,11 +2,21 @@ package com.staxnet.mojo.tomcat;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
 
 public class StreamHelper {
+    public static final int BUFFER_SIZE = 64 * 1024;
+
     public static OutputStream createMergedOutputStream(OutputStream out1, OutputStream out2)
     {
         return new MergedOutputStream(out1, out2);
@@ -52,26 +62,113 @@ public class StreamHelper {
     
     public static void consumeStream(InputStream in) throws IOException
     {        
-        byte[] bytes = new byte[1024];
-        int numRead = in.read(bytes);
-        while(numRead != -1)
-        {
-            numRead = in.read(bytes);
+        BufferPool pool = BufferPool.getDefault();
+        byte[] bytes = pool.acquire();
+        try {
+            int numRead = in.read(bytes);
+            while(numRead != -1)
+            {
+                numRead = in.read(bytes);
+            }
+        } finally {
+            pool.release(bytes);
         }
         in.close();
     }
 
+    /**
+     * Copies the input stream to the output stream. File to file copies are
+     * done with channel transfers rather than through the heap.
+     * 
+     * @param in
+     * @param out
+     * @throws IOException
+     */
     public static void transferStream(InputStream in,
             OutputStream out) throws IOException {
-        byte[] bytes = new byte[1024];
-        int numRead = in.read(bytes);
-        while(numRead != -1)
-        {
-            out.write(bytes, 0, numRead);
-            numRead = in.read(bytes);
+        if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+            ChannelHelper.transfer(((FileInputStream) in).getChannel(),
+                    ((FileOutputStream) out).getChannel());
+            return;
+        }
+        BufferPool pool = BufferPool.getDefault();
+        byte[] bytes = pool.acquire();
+        try {
+            int numRead = in.read(bytes);
+            while(numRead != -1)
+            {
+                out.write(bytes, 0, numRead);
+                numRead = in.read(bytes);
+            }
+        } finally {
+            pool.release(bytes);
         }
     }
     
+    /**
+     * Reads a stream to the end and hashes it. The stream is not closed.
+     * 
+     * @param in
+     * @return the hex encoded SHA-1 of the stream's content
+     * @throws IOException
+     */
+    public static String sha1(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        try {
+            int read;
+            while (-1 != (read = in.read(buffer))) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+
+    /**
+     * Hashes a region of a file without changing the file's position.
+     * 
+     * @param file
+     * @param position
+     * @param count
+     * @return the hex encoded SHA-1 of the region
+     * @throws IOException if the file is shorter than the region
+     */
+    public static String sha1(FileChannel file, long position, long count) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        BufferPool pool = BufferPool.getDefault();
+        byte[] bytes = pool.acquire();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (count > 0) {
+                buffer.clear();
+                if (count < buffer.capacity())
+                    buffer.limit((int) count);
+                int read = file.read(buffer, position);
+                if (read == -1)
+                    throw new IOException("file is shorter than the region hashed");
+                digest.update(bytes, 0, read);
+                position += read;
+                count -= read;
+            }
+        } finally {
+            pool.release(bytes);
+        }
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+
     public static byte[] readAll(InputStream in) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         transferStream(in, bout);
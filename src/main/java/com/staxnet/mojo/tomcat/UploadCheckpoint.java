@@ -0,0 +1,137 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Records the progress of a {@link ChunkedArchiveUploader} upload in a file,
+ * so that an upload that was interrupted can be continued by a later run
+ * instead of starting over. The checkpoint identifies the archive by its
+ * hash and lists each part the upload service has confirmed, with its hash
+ * and size. It is rewritten as each part is confirmed.
+ */
+public class UploadCheckpoint
+{
+    private static final String PART_PREFIX = "part.";
+
+    private File file;
+    private Properties values = new Properties();
+
+    /**
+     * Reads the checkpoint stored in the given file, if any. An unreadable
+     * checkpoint is treated as empty.
+     *
+     * @param file
+     */
+    public UploadCheckpoint(File file)
+    {
+        this.file = file;
+        if (file.exists()) {
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(file);
+                values.load(fis);
+            } catch (IOException e) {
+                values.clear();
+            } finally {
+                if (fis != null)
+                    StreamHelper.close(fis);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the checkpoint belongs to an upload of the same archive,
+     * with the same settings, to the same place.
+     *
+     * @param description
+     *            describes the archive and the upload, e.g. the archive hash,
+     *            destination and part size
+     * @return the id of the upload to continue, or null if there is none
+     */
+    public synchronized String getUploadId(String description)
+    {
+        if (!description.equals(values.getProperty("upload")))
+            return null;
+        return values.getProperty("id");
+    }
+
+    /**
+     * Starts a new checkpoint, discarding any recorded parts.
+     *
+     * @param description
+     *            see {@link #getUploadId(String)}
+     * @param uploadId
+     * @throws IOException
+     */
+    public synchronized void begin(String description, String uploadId) throws IOException
+    {
+        values.clear();
+        values.setProperty("upload", description);
+        values.setProperty("id", uploadId);
+        save();
+    }
+
+    /**
+     * @param number
+     * @return the hash of a confirmed part, or null if it was not confirmed
+     */
+    public synchronized String getPartHash(int number)
+    {
+        String value = values.getProperty(PART_PREFIX + number);
+        return value == null ? null : value.substring(0, value.indexOf(','));
+    }
+
+    /**
+     * @param number
+     * @return the size of a confirmed part, or -1 if it was not confirmed
+     */
+    public synchronized long getPartSize(int number)
+    {
+        String value = values.getProperty(PART_PREFIX + number);
+        return value == null ? -1 : Long.parseLong(value.substring(value.indexOf(',') + 1));
+    }
+
+    /**
+     * Records a confirmed part and saves the checkpoint.
+     *
+     * @param number
+     * @param hash
+     * @param size
+     * @throws IOException
+     */
+    public synchronized void confirmPart(int number, String hash, long size) throws IOException
+    {
+        values.setProperty(PART_PREFIX + number, hash + "," + size);
+        save();
+    }
+
+    /**
+     * Removes the checkpoint once the upload has completed.
+     */
+    public synchronized void delete()
+    {
+        values.clear();
+        file.delete();
+    }
+
+    private void save() throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            values.store(fos, "bees upload checkpoint");
+        } finally {
+            fos.close();
+        }
+        file.delete();
+        if (!temp.renameTo(file))
+            throw new IOException("could not write upload checkpoint " + file);
+    }
+}
@@ -0,0 +1,297 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.cloudbees.api.UploadProgress;
+
+/**
+ * Measures the throughput of an upload. Progress lines with the current and
+ * smoothed throughput and an estimate of the time remaining are printed at
+ * most once per second, and the bytes sent in each second of the upload are
+ * kept so that a summary with throughput percentiles can be written as JSON
+ * when the upload is over.
+ *
+ * The smoothed throughput is an exponentially weighted moving average with a
+ * time constant of five seconds, so bursts and stalls of a second or two do
+ * not swing the estimate.
+ */
+public class UploadMetrics implements WriteListener, UploadProgress
+{
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final double SMOOTHING_SECONDS = 5.0;
+    private static final long REPORT_INTERVAL_NANOS = NANOS_PER_SECOND;
+
+    private PrintStream out;
+    private String label;
+    private Map<String, String> attributes = new LinkedHashMap<String, String>();
+    private long startTime = -1;
+    private long lastTime;
+    private long lastReport;
+    private long totalWritten = 0;
+    private long totalToSend = -1;
+    private double instantRate = 0;
+    private double smoothedRate = -1;
+    private List<Long> seconds = new ArrayList<Long>();
+
+    /**
+     * @param out where progress lines are printed, or null to print nothing
+     */
+    public UploadMetrics(PrintStream out)
+    {
+        this.out = out;
+    }
+
+    /**
+     * @param label printed at the start of each progress line, or null
+     */
+    public synchronized void setLabel(String label)
+    {
+        this.label = label;
+    }
+
+    /**
+     * Adds a value, such as the application id, to the summary.
+     *
+     * @param name
+     * @param value
+     */
+    public synchronized void setAttribute(String name, String value)
+    {
+        attributes.put(name, value);
+    }
+
+    /**
+     * Marks the start of the upload. Otherwise the upload is taken to start
+     * with the first notification.
+     */
+    public synchronized void start()
+    {
+        if (startTime < 0) {
+            startTime = nanoTime();
+            lastTime = startTime;
+            lastReport = startTime;
+        }
+    }
+
+    public synchronized void handleBytesWritten(long deltaCount, long totalWritten, long totalToSend)
+    {
+        start();
+        long now = nanoTime();
+        this.totalWritten = totalWritten;
+        this.totalToSend = totalToSend;
+
+        int second = (int) ((now - startTime) / NANOS_PER_SECOND);
+        while (seconds.size() <= second)
+            seconds.add(Long.valueOf(0));
+        seconds.set(second, Long.valueOf(seconds.get(second).longValue() + deltaCount));
+
+        long elapsed = now - lastTime;
+        if (elapsed > 0) {
+            double interval = (double) elapsed / NANOS_PER_SECOND;
+            instantRate = deltaCount / interval;
+            if (smoothedRate < 0)
+                smoothedRate = instantRate;
+            else
+                smoothedRate += (1 - Math.exp(-interval / SMOOTHING_SECONDS)) * (instantRate - smoothedRate);
+            lastTime = now;
+        }
+
+        if (out != null && (now - lastReport >= REPORT_INTERVAL_NANOS
+                            || (totalToSend > 0 && totalWritten >= totalToSend))) {
+            lastReport = now;
+            out.println(formatProgress());
+        }
+    }
+
+    /**
+     * @return the bytes per second over the last notification
+     */
+    public synchronized double getInstantRate()
+    {
+        return instantRate;
+    }
+
+    /**
+     * @return the smoothed bytes per second
+     */
+    public synchronized double getSmoothedRate()
+    {
+        return Math.max(0, smoothedRate);
+    }
+
+    /**
+     * @return the estimated seconds remaining, or -1 if unknown
+     */
+    public synchronized long getEtaSeconds()
+    {
+        if (totalToSend < 0 || smoothedRate <= 0)
+            return -1;
+        return (long) Math.ceil(Math.max(0, totalToSend - totalWritten) / smoothedRate);
+    }
+
+    /**
+     * @return the bytes per second of the upload as a whole
+     */
+    public synchronized double getAverageRate()
+    {
+        long elapsed = getElapsedNanos();
+        return elapsed <= 0 ? 0 : totalWritten / ((double) elapsed / NANOS_PER_SECOND);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the given percentile of the bytes sent in each second
+     */
+    public synchronized double getPercentile(double percentile)
+    {
+        double[] rates = getSecondRates();
+        Arrays.sort(rates);
+        return percentile(rates, percentile);
+    }
+
+    /**
+     * Writes a JSON summary of the upload.
+     *
+     * @param file
+     * @param succeeded whether the upload completed
+     * @throws IOException
+     */
+    public synchronized void writeSummary(File file, boolean succeeded) throws IOException
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        double[] rates = getSecondRates();
+        Arrays.sort(rates);
+
+        StringBuilder json = new StringBuilder("{\n");
+        appendField(json, "timestamp", quote(format.format(new Date())));
+        for (Map.Entry<String, String> attribute : attributes.entrySet())
+            appendField(json, attribute.getKey(), quote(attribute.getValue()));
+        appendField(json, "succeeded", String.valueOf(succeeded));
+        appendField(json, "bytes", String.valueOf(totalWritten));
+        appendField(json, "expectedBytes", String.valueOf(totalToSend));
+        appendField(json, "durationMillis", String.valueOf(getElapsedNanos() / 1000000));
+        appendField(json, "averageBytesPerSecond", String.valueOf(Math.round(getAverageRate())));
+        appendField(json, "smoothedBytesPerSecond", String.valueOf(Math.round(getSmoothedRate())));
+        appendField(json, "seconds", String.valueOf(rates.length));
+        appendField(json, "bytesPerSecondPercentiles", "{ \"min\": " + round(rates, 0)
+            + ", \"p50\": " + round(rates, 50) + ", \"p90\": " + round(rates, 90)
+            + ", \"p99\": " + round(rates, 99) + ", \"max\": " + round(rates, 100) + " }");
+        json.setLength(json.length() - 2);
+        json.append("\n}\n");
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String formatProgress()
+    {
+        StringBuilder line = new StringBuilder();
+        if (label != null)
+            line.append(label).append(": ");
+        line.append("uploaded ").append(formatBytes(totalWritten));
+        if (totalToSend > 0)
+            line.append(" of ").append(formatBytes(totalToSend))
+                .append(String.format(Locale.ROOT, " (%d%%)", totalWritten * 100 / totalToSend));
+        line.append(", ").append(formatBytes((long) getSmoothedRate())).append("/s");
+        line.append(" (now ").append(formatBytes((long) instantRate)).append("/s)");
+        long eta = getEtaSeconds();
+        if (eta >= 0 && totalWritten < totalToSend)
+            line.append(String.format(Locale.ROOT, ", ETA %d:%02d", eta / 60, eta % 60));
+        return line.toString();
+    }
+
+    /**
+     * @return the current time in nanoseconds, as {@link System#nanoTime()}
+     */
+    long nanoTime()
+    {
+        return System.nanoTime();
+    }
+
+    private long getElapsedNanos()
+    {
+        return startTime < 0 ? 0 : lastTime - startTime;
+    }
+
+    /**
+     * The bytes sent in each second. The last second only counts if it is
+     * the only one, scaled to the part of it that has elapsed.
+     */
+    private double[] getSecondRates()
+    {
+        if (seconds.isEmpty())
+            return new double[0];
+        if (seconds.size() == 1)
+            return new double[] { getAverageRate() };
+        double[] rates = new double[seconds.size() - 1];
+        for (int i = 0; i < rates.length; i++)
+            rates[i] = seconds.get(i).longValue();
+        return rates;
+    }
+
+    private static double percentile(double[] sorted, double percentile)
+    {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+    }
+
+    private static long round(double[] sorted, double percentile)
+    {
+        return Math.round(percentile(sorted, percentile));
+    }
+
+    private static void appendField(StringBuilder json, String name, String value)
+    {
+        json.append("  ").append(quote(name)).append(": ").append(value).append(",\n");
+    }
+
+    private static String quote(String value)
+    {
+        if (value == null)
+            return "null";
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    static String formatBytes(long bytes)
+    {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+}
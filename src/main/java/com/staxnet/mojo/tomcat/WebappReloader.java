@@ -0,0 +1,109 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Acts on the changes a {@link ChangeWatcher} reports for a running web
+ * application. Changed static resources are served in place; when classes,
+ * libraries or web.xml change, the web application context is reloaded,
+ * keeping the server and the JVM running.
+ *
+ * A reload only replaces the classes the context's own class loader loaded.
+ * The classes directory and dependency jars are handed to the server as its
+ * class path; where the server puts them on a loader above the context's,
+ * their classes survive the reload and bees:run has to be restarted to pick
+ * up changes to them.
+ */
+public class WebappReloader implements ChangeWatcher.Listener
+{
+    private Log log;
+    private File classesDir;
+    private ContextReloader contextReloader = new ContextReloader();
+
+    /**
+     * @param log
+     * @param classesDir the classes directory, every change to which needs a
+     *        reload, or null
+     */
+    public WebappReloader(Log log, File classesDir)
+    {
+        this.log = log;
+        this.classesDir = classesDir == null ? null : classesDir.getAbsoluteFile();
+    }
+
+    /**
+     * Starts watching the classes and web resources directories.
+     *
+     * @param log
+     * @param classesDir
+     * @param warSourceDirectory
+     * @param debounceMillis
+     * @return the running watcher
+     * @throws IOException
+     */
+    public static ChangeWatcher watch(Log log, String classesDir, String warSourceDirectory,
+                                      long debounceMillis) throws IOException
+    {
+        File classes = classesDir == null ? null : new File(classesDir);
+        ChangeWatcher watcher = new ChangeWatcher(log, debounceMillis, new WebappReloader(log, classes));
+        if (classes != null)
+            watcher.addDirectory(classes);
+        if (warSourceDirectory != null)
+            watcher.addDirectory(new File(warSourceDirectory));
+        watcher.start();
+        log.info("watching " + classesDir + " and " + warSourceDirectory + " for changes");
+        return watcher;
+    }
+
+    public void filesChanged(File root, Set<File> files)
+    {
+        int resources = 0;
+        File reloadCause = null;
+        for (File file : files) {
+            if (needsReload(root, file)) {
+                reloadCause = file;
+                break;
+            }
+            resources++;
+        }
+        if (reloadCause == null) {
+            // the context serves the web resources directory itself
+            log.info(resources + " web resource(s) changed, serving them in place");
+            return;
+        }
+
+        log.info(reloadCause + " changed, reloading the web application");
+        long start = System.currentTimeMillis();
+        try {
+            List<String> contexts = contextReloader.reloadAll();
+            if (contexts.isEmpty())
+                log.warn("no web application context found to reload, restart bees:run to pick up the change");
+            else
+                log.info("reloaded " + StringHelper.join(contexts.toArray(new String[0]), ",")
+                         + " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            log.error("could not reload the web application", e);
+        }
+    }
+
+    /**
+     * Whether a changed file can only be picked up by reloading the context.
+     */
+    private boolean needsReload(File root, File file)
+    {
+        if (root.equals(classesDir))
+            return true;
+        String name = file.getName();
+        if (name.endsWith(".class") || name.endsWith(".jar"))
+            return true;
+        String path = root.toURI().relativize(file.toURI()).getPath();
+        return path.equals("") || path.equals("WEB-INF") || path.equals("WEB-INF/web.xml")
+            || path.startsWith("WEB-INF/classes") || path.startsWith("WEB-INF/lib")
+            || path.equals("META-INF/context.xml");
+    }
+}
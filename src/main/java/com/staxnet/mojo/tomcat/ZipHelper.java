@@ -1,16 +1,33 @@
 package com.staxnet.mojo.tomcat;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -28,14 +45,10 @@ public class ZipHelper {
      */
     public static final void addFileToZip(File file, String entryName,
             ZipOutputStream zos) throws IOException {
-        byte[] buffer = new byte[8192];
-        int read = 0;
         FileInputStream in = new FileInputStream(file);
         ZipEntry entry = new ZipEntry(entryName);
         zos.putNextEntry(entry);
-        while (-1 != (read = in.read(buffer))) {
-            zos.write(buffer, 0, read);
-        }
+        StreamHelper.transferStream(in, zos);
         in.close();
     }
 
@@ -49,16 +62,146 @@ public class ZipHelper {
      */
     public static final void addFileToZip(InputStream in, String entryName,
             ZipOutputStream zos) throws IOException {
-        byte[] buffer = new byte[8192];
-        int read = 0;
         ZipEntry entry = new ZipEntry(entryName);
         zos.putNextEntry(entry);
-        while (-1 != (read = in.read(buffer))) {
-            zos.write(buffer, 0, read);
-        }
+        StreamHelper.transferStream(in, zos);
         in.close();
     }
 
+    /**
+     * Inserts a file into a zip archive, deflating it on the specified number
+     * of threads.
+     * 
+     * @param file
+     * @param entryName
+     * @param zos
+     * @param threads
+     *            the number of compression threads. With a single thread the
+     *            file is deflated by the archive stream itself.
+     * @throws IOException
+     */
+    public static final void addFileToZip(File file, String entryName,
+            RawZipOutputStream zos, int threads) throws IOException {
+        addFileToZip(file, entryName, zos, threads, null);
+    }
+
+    /**
+     * Inserts a file into a zip archive, letting the policy choose whether and
+     * how hard the entry is compressed.
+     * 
+     * @param file
+     * @param entryName
+     * @param zos
+     * @param threads
+     *            the number of compression threads for deflated entries
+     * @param policy
+     *            the compression policy, or null to deflate at the default
+     *            level
+     * @throws IOException
+     */
+    public static final void addFileToZip(File file, String entryName,
+            RawZipOutputStream zos, int threads, CompressionPolicy policy)
+            throws IOException {
+        addFileToZip(file, entryName, zos, threads, policy, null);
+    }
+
+    /**
+     * Inserts a file into a zip archive, reusing the file's deflated data from
+     * the cache when the file has not changed since it was cached.
+     * 
+     * @param file
+     * @param entryName
+     * @param zos
+     * @param threads
+     *            the number of compression threads for deflated entries
+     * @param policy
+     *            the compression policy, or null to deflate at the default
+     *            level
+     * @param cache
+     *            the compressed entry cache, or null
+     * @throws IOException
+     */
+    public static final void addFileToZip(File file, String entryName,
+            RawZipOutputStream zos, int threads, CompressionPolicy policy,
+            CompressedEntryCache cache) throws IOException {
+        int level = policy == null ? Deflater.DEFAULT_COMPRESSION : policy
+                .getLevel(entryName, file);
+        if (cache != null && level != Deflater.NO_COMPRESSION) {
+            ZipEntry cached = cache.lookup(file, entryName, level);
+            if (cached != null) {
+                cache.writeCached(file, cached, zos);
+                return;
+            }
+        }
+        writeFileEntry(file, entryName, zos, threads, level, cache);
+    }
+
+    private static void writeFileEntry(File file, String entryName,
+            RawZipOutputStream zos, int threads, int level,
+            CompressedEntryCache cache) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ZipEntry entry = new ZipEntry(entryName);
+            entry.setTime(file.lastModified());
+            if (level == Deflater.NO_COMPRESSION) {
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(file.length());
+                if (!zos.canPatchHeaders()) {
+                    // the header cannot be fixed up afterwards, so checksum
+                    // the file before writing it
+                    entry.setCrc(getCrc(file));
+                }
+                zos.putNextEntry(entry);
+                StreamHelper.transferStream(in, zos);
+                zos.closeEntry();
+            } else if (cache != null) {
+                // keep a copy of the deflated data for the next run
+                zos.putRawEntry(entry);
+                OutputStream payload = cache.openPayload(file);
+                ParallelDeflater.Result result;
+                try {
+                    result = new ParallelDeflater(threads,
+                            ParallelDeflater.DEFAULT_BLOCK_SIZE, level).deflate(in,
+                            StreamHelper.createMergedOutputStream(zos, payload));
+                } finally {
+                    payload.close();
+                }
+                zos.closeRawEntry(result.getCrc(), result.getSize());
+                cache.commit(file, level, result.getCrc(), result.getSize(),
+                        result.getCompressedSize());
+            } else if (threads > 1) {
+                zos.putRawEntry(entry);
+                ParallelDeflater.Result result = new ParallelDeflater(threads,
+                        ParallelDeflater.DEFAULT_BLOCK_SIZE, level).deflate(in, zos);
+                zos.closeRawEntry(result.getCrc(), result.getSize());
+            } else {
+                zos.setLevel(level);
+                zos.putNextEntry(entry);
+                StreamHelper.transferStream(in, zos);
+                zos.closeEntry();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long getCrc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        FileInputStream in = new FileInputStream(file);
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        try {
+            int read;
+            while (-1 != (read = in.read(buffer))) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            pool.release(buffer);
+            in.close();
+        }
+        return crc.getValue();
+    }
+
     /**
      * Recursively inserts all files in a directory into a zipstream.
      * 
@@ -94,8 +237,6 @@ public class ZipHelper {
         }
         
         File[] files = directory.listFiles();
-        byte[] buffer = new byte[8192];
-        int read = 0;
         for (int i = 0, n = files.length; i < n; i++) {
             if (!files[i].isHidden()) {
                 if (files[i].isDirectory()) {
@@ -107,32 +248,247 @@ public class ZipHelper {
                                     base.getPath().length() + 1).replace('\\',
                                     '/'));
                     zos.putNextEntry(entry);
-                    while (-1 != (read = in.read(buffer))) {
-                        zos.write(buffer, 0, read);
-                    }
+                    StreamHelper.transferStream(in, zos);
                     in.close();
                 }
             }
         }
     }
     
+    /**
+     * Recursively inserts all files in a directory into a zip archive, letting
+     * the policy choose how each entry is compressed.
+     * 
+     * @param directory
+     *            the source directory
+     * @param base
+     *            optional parent directory that should serve as the entry root.
+     * @param dirPrefix
+     *            optional directory prefix to prepend onto each entry name.
+     * @param zos
+     *            the zip archive to add the files to.
+     * @param policy
+     *            the compression policy, or null to deflate every entry
+     * @throws IOException
+     */
+    public static final void addDirectoryToZip(File directory, File base,
+            String dirPrefix, RawZipOutputStream zos, CompressionPolicy policy)
+            throws IOException {
+        if (base == null)
+            base = directory;
+        if (dirPrefix == null)
+            dirPrefix = "";
+
+        //add an entry for the directory itself
+        if(!base.equals(directory) && directory.list().length == 0)
+        {
+            String dirEntryPath = dirPrefix
+            + directory.getPath().substring(
+                    base.getPath().length() + 1).replace('\\',
+                    '/');
+            ZipEntry dirEntry = new ZipEntry(dirEntryPath.endsWith("/") ? dirEntryPath : dirEntryPath + "/");
+            zos.putNextEntry(dirEntry);
+            zos.closeEntry();
+        }
+
+        File[] files = directory.listFiles();
+        for (int i = 0, n = files.length; i < n; i++) {
+            if (!files[i].isHidden()) {
+                if (files[i].isDirectory()) {
+                    addDirectoryToZip(files[i], base, dirPrefix, zos, policy);
+                } else {
+                    addFileToZip(files[i], dirPrefix
+                            + files[i].getPath().substring(
+                                    base.getPath().length() + 1).replace('\\',
+                                    '/'), zos, 1, policy);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Recursively inserts all files in a directory into a zip archive using a
+     * pool of worker threads. Entries are written in sorted, depth-first
+     * order.
+     * 
+     * @param directory
+     *            the source directory
+     * @param base
+     *            optional parent directory that should serve as the entry root.
+     * @param dirPrefix
+     *            optional directory prefix to prepend onto each entry name.
+     * @param zos
+     *            the zip archive to add the files to.
+     * @param policy
+     *            the compression policy, or null to deflate every entry
+     * @param threads
+     *            the number of worker threads
+     * @param memoryCap
+     *            the maximum number of bytes of file content and deflated data
+     *            buffered ahead of the writer
+     * @throws IOException
+     */
+    public static final void addDirectoryToZip(File directory, File base,
+            String dirPrefix, RawZipOutputStream zos, CompressionPolicy policy,
+            int threads, long memoryCap) throws IOException {
+        addDirectoryToZip(directory, base, dirPrefix, zos, policy, threads,
+                memoryCap, null);
+    }
+
+    /**
+     * Recursively inserts all files in a directory into a zip archive using a
+     * pool of worker threads, copying the deflated data of unchanged files
+     * from the cache instead of compressing them again.
+     * 
+     * @param directory
+     *            the source directory
+     * @param base
+     *            optional parent directory that should serve as the entry root.
+     * @param dirPrefix
+     *            optional directory prefix to prepend onto each entry name.
+     * @param zos
+     *            the zip archive to add the files to.
+     * @param policy
+     *            the compression policy, or null to deflate every entry
+     * @param threads
+     *            the number of worker threads
+     * @param memoryCap
+     *            the maximum number of bytes of file content and deflated data
+     *            buffered ahead of the writer
+     * @param cache
+     *            the compressed entry cache, or null
+     * @throws IOException
+     */
+    public static final void addDirectoryToZip(File directory, File base,
+            String dirPrefix, RawZipOutputStream zos, CompressionPolicy policy,
+            int threads, long memoryCap, CompressedEntryCache cache) throws IOException {
+        ParallelDirectoryPackager packager = new ParallelDirectoryPackager(
+                threads, memoryCap, policy);
+        packager.setEntryCache(cache);
+        packager.addDirectory(directory, base, dirPrefix, zos);
+    }
+
+    /**
+     * Returns a stream over a single entry of a zipped stream, see
+     * {@link #openZipEntry(InputStream, String)}. The entry is not buffered,
+     * so it must be read before zipFile is closed.
+     * 
+     * @param zipFile
+     * @param entryName
+     * @return the entry contents, or an empty stream if the entry does not
+     *         exist
+     * @throws IOException
+     */
     public static InputStream getZipEntry(InputStream zipFile, final String entryName) throws IOException
     {
-        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        unzipFile(zipFile, new ZipEntryHandler()
+        InputStream in = openZipEntry(zipFile, entryName);
+        return in != null ? in : new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * Opens a live stream over a single entry of a zipped stream. The archive
+     * is read only up to the end of the entry; closing the returned stream
+     * closes zipFile.
+     * 
+     * @param zipFile
+     * @param entryName
+     * @return a stream over the entry's content, or null if the archive has no
+     *         such entry (in which case zipFile is closed)
+     * @throws IOException
+     */
+    public static InputStream openZipEntry(InputStream zipFile, String entryName) throws IOException
+    {
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(zipFile));
+        boolean found = false;
+        try {
+            found = findEntry(zis, entryName);
+        } finally {
+            if (!found)
+                zis.close();
+        }
+        return found ? zis : null;
+    }
+
+    /**
+     * Reads several entries of a zip file. The entries are located through
+     * the central directory, so no other entry is read or inflated.
+     * 
+     * @param zipFile
+     * @param entryNames
+     * @return the contents of the entries that were found, keyed by name in
+     *         the order given
+     * @throws IOException
+     */
+    public static Map<String, byte[]> getZipEntries(File zipFile,
+            Collection<String> entryNames) throws IOException
+    {
+        final Map<String, byte[]> found = new LinkedHashMap<String, byte[]>();
+        unzipEntries(zipFile, entryNames.toArray(new String[entryNames.size()]),
+                new ZipEntryHandler()
         {
-            private boolean unzipped = false;
             public void unzip(ZipEntry entry, InputStream zis)
                     throws IOException {
-                if(!unzipped && entry.getName().equals(entryName))
-                {
-                    StreamHelper.transferStream(zis, bout);
-                    unzipped = true;
+                found.put(entry.getName(), StreamHelper.readAll(zis));
+            }
+        });
+        return found;
+    }
+
+    private static boolean findEntry(ZipInputStream zis, String entryName) throws IOException
+    {
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (entry.getName().equals(entryName))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a single entry from a zip file. Only the central directory and the
+     * requested entry are read.
+     * 
+     * @param zipFile
+     * @param entryName
+     * @return the entry contents, or an empty stream if the entry does not
+     *         exist
+     * @throws IOException
+     */
+    public static InputStream getZipEntry(File zipFile, String entryName) throws IOException
+    {
+        byte[] content = getZipEntries(zipFile, Collections.singleton(entryName)).get(entryName);
+        return new ByteArrayInputStream(content != null ? content : new byte[0]);
+    }
+
+    /**
+     * Passes the named entries of a zip file to the handler, in the order
+     * given. The archive's central directory is used to locate the entries so
+     * that no other entry is read or inflated. Names that are not in the
+     * archive are skipped.
+     * 
+     * @param zipFile
+     * @param entryNames
+     * @param zipHandler
+     * @throws IOException
+     */
+    public static void unzipEntries(File zipFile, String[] entryNames,
+            ZipEntryHandler zipHandler) throws IOException {
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            for (String entryName : entryNames) {
+                ZipEntry entry = zip.getEntry(entryName);
+                if (entry == null)
+                    continue;
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    zipHandler.unzip(entry, StreamHelper.createNoCloseInputStream(in));
+                } finally {
+                    in.close();
                 }
-            }    
-        }, false);
-        
-        return new ByteArrayInputStream(bout.toByteArray());
+            }
+        } finally {
+            zip.close();
+        }
     }
 
     public static void unzipFile(InputStream fis, ZipEntryHandler zipHandler,
@@ -151,6 +507,109 @@ public class ZipHelper {
         ZipHelper.unzipFile(fis, new UnzipToDirEntryHandler(targetDir), closeStream);
     }
 
+    /**
+     * Extracts a zip file into a directory, inflating and writing independent
+     * entries on a pool of worker threads.
+     * 
+     * @param zipFile
+     * @param targetDir
+     * @param threads
+     *            the number of extraction threads
+     * @throws IOException
+     *             if an entry cannot be written, or its name would place it
+     *             outside targetDir
+     */
+    public static void unzipFile(File zipFile, File targetDir, int threads) throws IOException
+    {
+        final ZipFile zip = new ZipFile(zipFile);
+        final Set<File> createdDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads),
+                new DaemonThreadFactory("bees-unzip"));
+        List<Future<?>> pending = new ArrayList<Future<?>>();
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final File destFile = getEntryFile(targetDir, entry.getName());
+                if (entry.isDirectory()) {
+                    createDirectory(destFile, createdDirs);
+                    continue;
+                }
+                pending.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        createDirectory(destFile.getParentFile(), createdDirs);
+                        extractEntry(zip, entry, destFile);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : pending)
+                await(future);
+        } finally {
+            pool.shutdownNow();
+            zip.close();
+        }
+    }
+
+    private static void createDirectory(File dir, Set<File> createdDirs) throws IOException {
+        if (createdDirs.contains(dir))
+            return;
+        if (!dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("could not create directory " + dir);
+        createdDirs.add(dir);
+    }
+
+    private static void extractEntry(ZipFile zip, ZipEntry entry, File destFile) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(destFile, "rw");
+        try {
+            if (entry.getSize() >= 0)
+                out.setLength(entry.getSize());
+            InputStream in = zip.getInputStream(entry);
+            BufferPool pool = BufferPool.getDefault();
+            byte[] buffer = pool.acquire();
+            try {
+                int read;
+                while (-1 != (read = in.read(buffer))) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                pool.release(buffer);
+                in.close();
+            }
+            if (out.getFilePointer() != out.length())
+                out.setLength(out.getFilePointer());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while extracting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("extraction failed", e.getCause());
+        }
+    }
+
+    /**
+     * Resolves an entry name against a destination directory, rejecting
+     * names that would escape it ("zip slip").
+     */
+    static File getEntryFile(File destFolder, String entryName) throws IOException {
+        File destFile = new File(destFolder, entryName);
+        String destPath = destFile.getCanonicalPath();
+        String folderPath = destFolder.getCanonicalPath();
+        if (!destPath.equals(folderPath)
+                && !destPath.startsWith(folderPath + File.separator))
+            throw new IOException("zip entry is outside of the target directory: " + entryName);
+        return destFile;
+    }
+
     public interface ZipEntryHandler {
         public void unzip(ZipEntry entry, InputStream zis)
                 throws IOException;
@@ -178,32 +637,27 @@ public class ZipHelper {
         }
     }
     
-    private static int BUFFER = 2048;
     public static File unzipEntryToFolder(ZipEntry entry, InputStream zis,
             File destFolder) throws FileNotFoundException, IOException {
-        BufferedOutputStream dest;
         if(entry.isDirectory())
         {
-            File destFile = new File(destFolder, entry.getName());
+            File destFile = getEntryFile(destFolder, entry.getName());
             destFile.mkdirs();
             return destFile;
         }
         else
         {
-            int count;
-            byte data[] = new byte[BUFFER];
             // write the files to the disk
-            File destFile = new File(destFolder, entry.getName());
+            File destFile = getEntryFile(destFolder, entry.getName());
             File parentFolder = destFile.getParentFile(); 
             if(!parentFolder.exists())
                 parentFolder.mkdirs();
             FileOutputStream fos = new FileOutputStream(destFile);
-            dest = new BufferedOutputStream(fos, BUFFER);
-            while ((count = zis.read(data, 0, BUFFER)) != -1) {
-                dest.write(data, 0, count);
+            try {
+                StreamHelper.transferStream(zis, fos);
+            } finally {
+                fos.close();
             }
-            dest.flush();
-            dest.close();
             
             return destFile;
         }
@@ -0,0 +1,61 @@
+package com.staxnet.mojo.tomcat;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase
+{
+    public void testReleasedBufferIsReused()
+    {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] buffer = pool.acquire();
+        assertEquals(16, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    public void testBuffersAreSharedBetweenThreads() throws Exception
+    {
+        final BufferPool pool = new BufferPool(16, 2);
+        final byte[][] released = new byte[2][];
+        Thread thread = new Thread()
+        {
+            public void run()
+            {
+                released[0] = pool.acquire();
+                released[1] = pool.acquire();
+                // the first stays with this thread, the second is shared
+                pool.release(released[0]);
+                pool.release(released[1]);
+            }
+        };
+        thread.start();
+        thread.join();
+        assertSame(released[1], pool.acquire());
+        assertEquals(1, pool.getHits());
+    }
+
+    public void testPoolIsBounded()
+    {
+        BufferPool pool = new BufferPool(16, 1);
+        byte[] a = pool.acquire();
+        byte[] b = pool.acquire();
+        byte[] c = pool.acquire();
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertSame(a, pool.acquire());
+        assertSame(b, pool.acquire());
+        assertNotSame(c, pool.acquire());
+    }
+
+    public void testBuffersOfAnotherSizeAreNotPooled()
+    {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] other = new byte[8];
+        pool.release(other);
+        assertEquals(16, pool.acquire().length);
+        assertEquals(0, pool.getHits());
+    }
+}
@@ -0,0 +1,120 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+import junit.framework.TestCase;
+
+public class ChangeWatcherTest extends TestCase
+{
+    private static final long DEBOUNCE = 400;
+
+    private File directory;
+    private ChangeWatcher watcher;
+    private BlockingQueue<Set<File>> batches = new LinkedBlockingQueue<Set<File>>();
+    private List<String> warnings = new ArrayList<String>();
+    private boolean failNextBatch = false;
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-watch").getCanonicalFile();
+        watcher = new ChangeWatcher(new SystemStreamLog()
+        {
+            public void warn(CharSequence content, Throwable error)
+            {
+                synchronized (warnings) {
+                    warnings.add(content.toString());
+                }
+            }
+        }, DEBOUNCE, new ChangeWatcher.Listener()
+        {
+            public void filesChanged(File root, Set<File> files)
+            {
+                batches.add(new LinkedHashSet<File>(files));
+                if (failNextBatch) {
+                    failNextBatch = false;
+                    throw new IllegalStateException("listener failed");
+                }
+            }
+        });
+        watcher.addDirectory(directory);
+        watcher.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        watcher.stop();
+        TestFiles.delete(directory);
+    }
+
+    public void testBurstOfChangesIsReportedTogether() throws Exception
+    {
+        long firstWrite = System.currentTimeMillis();
+        List<File> written = new ArrayList<File>();
+        for (int i = 0; i < 5; i++) {
+            File file = new File(directory, "Page" + i + ".html");
+            TestFiles.write(file, "page".getBytes("UTF-8"));
+            written.add(file);
+            Thread.sleep(DEBOUNCE / 8);
+        }
+
+        Set<File> batch = batches.poll(DEBOUNCE * 20, TimeUnit.MILLISECONDS);
+        assertNotNull("changes reported", batch);
+        assertTrue("reported once the directory was quiet",
+                   System.currentTimeMillis() - firstWrite >= DEBOUNCE);
+        // a stalled machine may split the burst, but no file is lost
+        int count = 1;
+        Set<File> reported = new LinkedHashSet<File>(batch);
+        while ((batch = batches.poll(DEBOUNCE * 3, TimeUnit.MILLISECONDS)) != null) {
+            reported.addAll(batch);
+            count++;
+        }
+        assertTrue(reported + " holds " + written, reported.containsAll(written));
+        assertTrue(count + " batches for " + written.size() + " files", count < written.size());
+    }
+
+    public void testListenerFailureIsLoggedAndWatchingGoesOn() throws Exception
+    {
+        failNextBatch = true;
+        TestFiles.write(new File(directory, "first.txt"), "first".getBytes("UTF-8"));
+        assertNotNull(batches.poll(DEBOUNCE * 20, TimeUnit.MILLISECONDS));
+        // let the batch that failed finish before changing more
+        Thread.sleep(DEBOUNCE * 3);
+        batches.clear();
+
+        File second = new File(directory, "second.txt");
+        TestFiles.write(second, "second".getBytes("UTF-8"));
+        Set<File> batch = batches.poll(DEBOUNCE * 20, TimeUnit.MILLISECONDS);
+        assertNotNull("still watching", batch);
+        assertTrue(batch.contains(second));
+        synchronized (warnings) {
+            assertEquals(1, warnings.size());
+        }
+    }
+
+    public void testNewDirectoriesAreWatched() throws Exception
+    {
+        File classes = new File(directory, "WEB-INF/classes");
+        classes.mkdirs();
+        assertNotNull(batches.poll(DEBOUNCE * 20, TimeUnit.MILLISECONDS));
+        Thread.sleep(DEBOUNCE * 3);
+        batches.clear();
+
+        File type = new File(classes, "App.class");
+        TestFiles.write(type, new byte[] { 1, 2, 3 });
+        Set<File> reported = new LinkedHashSet<File>();
+        Set<File> batch;
+        while (!reported.contains(type)
+               && (batch = batches.poll(DEBOUNCE * 20, TimeUnit.MILLISECONDS)) != null)
+            reported.addAll(batch);
+        assertTrue(reported + " holds " + type, reported.contains(type));
+    }
+}
@@ -0,0 +1,223 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ChunkedArchiveUploaderTest extends TestCase
+{
+    private static final int PART_SIZE = 4096;
+    private static final String APP_ID = "acme/app";
+
+    private File directory;
+    private LocalUploadServer server;
+    private byte[] archive;
+    private WriteListener listener;
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-upload");
+        server = new LocalUploadServer(0, new File(directory, "server"));
+        server.start();
+        // ten full parts and a short one
+        archive = new byte[PART_SIZE * 10 + 100];
+        new Random(42).nextBytes(archive);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        server.stop();
+        TestFiles.delete(directory);
+    }
+
+    public void testCommitAssemblesTheArchive() throws Exception
+    {
+        File checkpointFile = new File(directory, "upload.checkpoint");
+        ChunkedArchiveUploader uploader = createUploader(2);
+        uploader.setCheckpoint(new UploadCheckpoint(checkpointFile), "hash");
+
+        String url = upload(uploader);
+
+        assertEquals(server.getUrl() + "/apps/" + APP_ID, url);
+        assertArchiveDeployed();
+        assertEquals(11, server.getPartRequests());
+        assertEquals(0, server.getOpenUploads());
+        assertFalse("checkpoint is removed once committed", checkpointFile.exists());
+    }
+
+    public void testCorruptedPartIsSentAgain() throws Exception
+    {
+        server.setCorruptPart(3);
+
+        upload(createUploader(2));
+
+        assertArchiveDeployed();
+        assertEquals(12, server.getPartRequests());
+    }
+
+    public void testDroppedUploadResumesFromCheckpoint() throws Exception
+    {
+        File checkpointFile = new File(directory, "upload.checkpoint");
+        server.setDropAfter(4);
+        try {
+            // one part at a time, so exactly four are stored before the drops
+            ChunkedArchiveUploader uploader = createUploader(1);
+            uploader.setCheckpoint(new UploadCheckpoint(checkpointFile), "hash");
+            upload(uploader);
+            fail("upload should fail while the server drops connections");
+        } catch (IOException expected) {
+        }
+        assertEquals("interrupted upload is kept for resuming", 1, server.getOpenUploads());
+        UploadCheckpoint checkpoint = new UploadCheckpoint(checkpointFile);
+        int confirmed = 0;
+        for (int i = 0; i <= 10; i++) {
+            if (checkpoint.getPartHash(i) != null)
+                confirmed++;
+        }
+        assertEquals(4, confirmed);
+
+        server.setDropAfter(-1);
+        int requests = server.getPartRequests();
+        ChunkedArchiveUploader uploader = createUploader(2);
+        uploader.setCheckpoint(new UploadCheckpoint(checkpointFile), "hash");
+        upload(uploader);
+
+        assertArchiveDeployed();
+        assertEquals("only unconfirmed parts are sent", 11 - confirmed,
+                     server.getPartRequests() - requests);
+        assertEquals(0, server.getOpenUploads());
+    }
+
+    public void testMalformedListingLinesAreSkipped() throws Exception
+    {
+        File checkpointFile = new File(directory, "upload.checkpoint");
+        server.setDropAfter(2);
+        try {
+            ChunkedArchiveUploader uploader = createUploader(1);
+            uploader.setCheckpoint(new UploadCheckpoint(checkpointFile), "hash");
+            upload(uploader);
+            fail("upload should fail while the server drops connections");
+        } catch (IOException expected) {
+        }
+
+        server.setDropAfter(-1);
+        server.setExtraListing("part-x 0123456789abcdef\n7\n8 0123456789abcdef extra\n\n"
+                               + "9 0123456789abcdef\n");
+        int requests = server.getPartRequests();
+        ChunkedArchiveUploader uploader = createUploader(2);
+        uploader.setCheckpoint(new UploadCheckpoint(checkpointFile), "hash");
+        upload(uploader);
+
+        assertArchiveDeployed();
+        assertEquals("the confirmed parts are not sent again", 9, server.getPartRequests() - requests);
+        assertEquals("the resumed upload is committed", 0, server.getOpenUploads());
+    }
+
+    public void testFileArchiveIsSentFromItsRegions() throws Exception
+    {
+        server.setCorruptPart(5);
+
+        uploadFile(createUploader(3));
+
+        assertArchiveDeployed();
+        assertEquals("the corrupted region is sent again", 12, server.getPartRequests());
+    }
+
+    public void testDroppedFileUploadResumesFromCheckpoint() throws Exception
+    {
+        File checkpointFile = new File(directory, "upload.checkpoint");
+        server.setDropAfter(6);
+        try {
+            ChunkedArchiveUploader uploader = createUploader(1);
+            uploader.setCheckpoint(new UploadCheckpoint(checkpointFile), "hash");
+            uploadFile(uploader);
+            fail("upload should fail while the server drops connections");
+        } catch (IOException expected) {
+        }
+
+        server.setDropAfter(-1);
+        int requests = server.getPartRequests();
+        ChunkedArchiveUploader uploader = createUploader(2);
+        uploader.setCheckpoint(new UploadCheckpoint(checkpointFile), "hash");
+        uploadFile(uploader);
+
+        assertArchiveDeployed();
+        assertEquals("only unconfirmed regions are sent", 5, server.getPartRequests() - requests);
+    }
+
+    public void testProgressIsReportedWithinParts() throws Exception
+    {
+        final List<Long> totals = new ArrayList<Long>();
+        listener = new WriteListener()
+        {
+            public void handleBytesWritten(long deltaCount, long totalWritten, long totalToWrite)
+            {
+                synchronized (totals) {
+                    long last = totals.isEmpty() ? 0 : totals.get(totals.size() - 1).longValue();
+                    assertEquals(last + deltaCount, totalWritten);
+                    assertEquals(archive.length, totalToWrite);
+                    totals.add(Long.valueOf(totalWritten));
+                }
+            }
+        };
+        server.setCorruptPart(1);
+        ChunkedArchiveUploader uploader = createUploader(2);
+        uploader.setPartSize(PART_SIZE * 5);
+        upload(uploader);
+
+        assertArchiveDeployed();
+        assertTrue("notified while parts are written", totals.size() > 3 * 2);
+        assertEquals("a part sent again is counted once", archive.length,
+                     totals.get(totals.size() - 1).longValue());
+
+        totals.clear();
+        uploader = createUploader(2);
+        uploader.setPartSize(PART_SIZE * 5);
+        uploadFile(uploader);
+        assertTrue("notified while regions are written", totals.size() > 3);
+        assertEquals(archive.length, totals.get(totals.size() - 1).longValue());
+    }
+
+    private ChunkedArchiveUploader createUploader(int threads)
+    {
+        ChunkedArchiveUploader uploader = new ChunkedArchiveUploader(server.getUrl(), "key", "secret");
+        uploader.setPartSize(PART_SIZE);
+        uploader.setThreads(threads);
+        return uploader;
+    }
+
+    private String upload(ChunkedArchiveUploader uploader) throws IOException
+    {
+        return uploader.upload(APP_ID, "test", "a message", "war",
+                               new ByteArrayInputStream(archive), archive.length, listener);
+    }
+
+    private String uploadFile(ChunkedArchiveUploader uploader) throws IOException
+    {
+        File file = new File(directory, "stax-deploy.zip");
+        TestFiles.write(file, archive);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return uploader.upload(APP_ID, "test", "a message", "war", in, file.length(), listener);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void assertArchiveDeployed() throws IOException
+    {
+        FileInputStream in = new FileInputStream(server.getArchiveFile(APP_ID, "war"));
+        try {
+            assertTrue("deployed archive matches", Arrays.equals(archive, StreamHelper.readAll(in)));
+        } finally {
+            in.close();
+        }
+    }
+}
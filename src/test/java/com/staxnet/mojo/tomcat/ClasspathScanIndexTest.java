@@ -0,0 +1,134 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+public class ClasspathScanIndexTest extends TestCase
+{
+    private File directory;
+    private File indexFile;
+    private File jar;
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-scan");
+        indexFile = new File(directory, "classpath-index.properties");
+        jar = new File(directory, "lib.jar");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        TestFiles.delete(directory);
+    }
+
+    public void testUnchangedJarIsAHit() throws Exception
+    {
+        writeJar(jar, "com/acme/Plain.class", classFile("Ljava/lang/Deprecated;"));
+        ClasspathScanIndex index = new ClasspathScanIndex(indexFile);
+        assertTrue(index.scan(jar).isSkippable());
+        assertEquals(0, index.getHits());
+        assertEquals(1, index.getMisses());
+        index.save();
+
+        index = new ClasspathScanIndex(indexFile);
+        assertTrue(index.scan(jar).isSkippable());
+        assertEquals(1, index.getHits());
+        assertEquals(0, index.getMisses());
+    }
+
+    public void testChangedJarIsReadAgain() throws Exception
+    {
+        writeJar(jar, "com/acme/Plain.class", classFile("Ljava/lang/Deprecated;"));
+        long modified = jar.lastModified();
+        ClasspathScanIndex index = new ClasspathScanIndex(indexFile);
+        index.scan(jar);
+        index.save();
+
+        // a different size at the same time
+        writeJar(jar, "com/acme/Servlet.class", classFile("Ljavax/servlet/annotation/WebServlet;"));
+        jar.setLastModified(modified);
+        index = new ClasspathScanIndex(indexFile);
+        assertTrue(index.scan(jar).hasServletAnnotations());
+        assertEquals(1, index.getMisses());
+        index.save();
+
+        // the same size at a different time
+        writeJar(jar, "com/acme/Servlet.class", classFile("Ljavax/servlet/annotation/WebFilter;"));
+        jar.setLastModified(modified - 10000);
+        index = new ClasspathScanIndex(indexFile);
+        assertTrue(index.scan(jar).hasServletAnnotations());
+        assertEquals(0, index.getHits());
+        assertEquals(1, index.getMisses());
+    }
+
+    public void testScanFindsWhatTheContainerLooksFor() throws Exception
+    {
+        writeJar(jar, "META-INF/services/javax.servlet.ServletContainerInitializer", new byte[0]);
+        ClasspathScanIndex.JarScan scan = new ClasspathScanIndex(indexFile).scan(jar);
+        assertTrue(scan.hasInitializer());
+        assertFalse(scan.isSkippable());
+
+        writeJar(jar, "META-INF/tags/acme.tld", new byte[0]);
+        assertTrue(new ClasspathScanIndex(indexFile).scan(jar).hasTlds());
+
+        writeJar(jar, "com/acme/Listener.class",
+                 classFile("Ljava/lang/Object;", "Ljavax/servlet/annotation/WebListener;"));
+        assertTrue(new ClasspathScanIndex(indexFile).scan(jar).hasServletAnnotations());
+    }
+
+    public void testUnreadableIndexIsEmpty() throws Exception
+    {
+        writeJar(jar, "com/acme/Plain.class", classFile("Ljava/lang/Object;"));
+        TestFiles.write(indexFile, new byte[] { '\\', 'u', '0' });
+        ClasspathScanIndex index = new ClasspathScanIndex(indexFile);
+        assertTrue(index.scan(jar).isSkippable());
+        assertEquals(1, index.getMisses());
+    }
+
+    /**
+     * A class file holding the given strings in its constant pool, along with
+     * a long, a method reference and a method handle, and nothing after it.
+     */
+    private static byte[] classFile(String... strings) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(51);
+        out.writeShort(1 + 2 + 1 + 1 + strings.length);
+        out.writeByte(5);
+        out.writeLong(Long.MAX_VALUE);
+        out.writeByte(10);
+        out.writeShort(1);
+        out.writeShort(2);
+        out.writeByte(15);
+        out.writeByte(5);
+        out.writeShort(3);
+        for (String value : strings) {
+            out.writeByte(1);
+            out.writeUTF(value);
+        }
+        out.close();
+        return bout.toByteArray();
+    }
+
+    private static void writeJar(File file, String name, byte[] content) throws IOException
+    {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.putNextEntry(new ZipEntry(name));
+            zos.write(content);
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+public class CompressedEntryCacheTest extends TestCase
+{
+    private File directory;
+    private File cacheDirectory;
+    private File file;
+    private byte[] content;
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-cache");
+        cacheDirectory = new File(directory, "cache");
+        // compressible, and large enough to be deflated in several blocks
+        content = new byte[3 * 1024 * 1024];
+        Random random = new Random(42);
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + random.nextInt(4));
+        file = new File(directory, "webapp.war");
+        TestFiles.write(file, content);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        TestFiles.delete(directory);
+    }
+
+    public void testUnchangedFileIsCopiedFromTheCache() throws Exception
+    {
+        CompressedEntryCache cache = new CompressedEntryCache(cacheDirectory);
+        File first = writePackage(cache);
+        cache.save();
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache = new CompressedEntryCache(cacheDirectory);
+        File second = writePackage(cache);
+        cache.save();
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getMisses());
+
+        assertEntry(first);
+        assertEntry(second);
+    }
+
+    public void testChangedFileIsCompressedAgain() throws Exception
+    {
+        CompressedEntryCache cache = new CompressedEntryCache(cacheDirectory);
+        writePackage(cache);
+        cache.save();
+
+        content[0] = 'z';
+        TestFiles.write(file, content);
+        file.setLastModified(file.lastModified() + 2000);
+
+        cache = new CompressedEntryCache(cacheDirectory);
+        File second = writePackage(cache);
+        cache.save();
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEntry(second);
+    }
+
+    private File writePackage(CompressedEntryCache cache) throws IOException
+    {
+        File zip = File.createTempFile("package", ".zip", directory);
+        FileOutputStream fos = new FileOutputStream(zip);
+        RawZipOutputStream zos = new RawZipOutputStream(fos, fos.getChannel());
+        try {
+            ZipHelper.addFileToZip(file, "webapp.war", zos, 2,
+                                   new FixedCompressionPolicy(Deflater.DEFAULT_COMPRESSION), cache);
+        } finally {
+            zos.close();
+        }
+        return zip;
+    }
+
+    private void assertEntry(File zip) throws IOException
+    {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            ZipEntry entry = zipFile.getEntry("webapp.war");
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            InputStream in = zipFile.getInputStream(entry);
+            try {
+                assertTrue("entry matches the file", Arrays.equals(content, StreamHelper.readAll(in)));
+            } finally {
+                in.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+public class DefaultCompressionPolicyTest extends TestCase
+{
+    private File directory;
+    private DefaultCompressionPolicy policy = new DefaultCompressionPolicy(Deflater.BEST_SPEED);
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-policy");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        TestFiles.delete(directory);
+    }
+
+    public void testTextIsDeflated() throws Exception
+    {
+        byte[] text = new byte[64 * 1024];
+        Random random = new Random(42);
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ('a' + random.nextInt(26));
+        assertEquals(Deflater.BEST_SPEED, policy.getLevel("index.html", file("index.html", text)));
+    }
+
+    public void testRandomDataIsStored() throws Exception
+    {
+        assertEquals(Deflater.NO_COMPRESSION, policy.getLevel("data.bin", file("data.bin", random(64 * 1024))));
+    }
+
+    public void testCompressedFormatIsStored() throws Exception
+    {
+        byte[] jar = random(64 * 1024);
+        jar[0] = 'P';
+        jar[1] = 'K';
+        jar[2] = 3;
+        jar[3] = 4;
+        assertEquals(Deflater.NO_COMPRESSION, policy.getLevel("WEB-INF/lib/a.jar", file("a.jar", jar)));
+    }
+
+    public void testLowEntropyArchiveIsDeflated() throws Exception
+    {
+        // a jar built with stored entries
+        byte[] jar = new byte[64 * 1024];
+        jar[0] = 'P';
+        jar[1] = 'K';
+        jar[2] = 3;
+        jar[3] = 4;
+        assertEquals(Deflater.BEST_SPEED, policy.getLevel("WEB-INF/lib/a.jar", file("a.jar", jar)));
+    }
+
+    public void testSmallAndEmptyFiles() throws Exception
+    {
+        assertEquals(Deflater.BEST_SPEED, policy.getLevel("small.png", file("small.png", random(100))));
+        assertEquals(Deflater.NO_COMPRESSION, policy.getLevel("empty.txt", file("empty.txt", new byte[0])));
+    }
+
+    public void testEntropy()
+    {
+        int[] counts = new int[256];
+        assertEquals(0.0, DefaultCompressionPolicy.entropy(counts, 0), 0.0);
+        counts['a'] = 10;
+        assertEquals(0.0, DefaultCompressionPolicy.entropy(counts, 10), 1e-9);
+        for (int i = 0; i < 256; i++)
+            counts[i] = 4;
+        assertEquals(8.0, DefaultCompressionPolicy.entropy(counts, 1024), 1e-9);
+    }
+
+    private File file(String name, byte[] content) throws Exception
+    {
+        File file = new File(directory, name);
+        TestFiles.write(file, content);
+        return file;
+    }
+
+    private static byte[] random(int length)
+    {
+        byte[] data = new byte[length];
+        new Random(7).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,74 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class HttpStreamingUploaderTest extends TestCase
+{
+    private static final String APP_ID = "acme/app";
+
+    private File directory;
+    private LocalUploadServer server;
+    private byte[] archive;
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-upload");
+        server = new LocalUploadServer(0, new File(directory, "server"));
+        server.start();
+        archive = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(archive);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        server.stop();
+        TestFiles.delete(directory);
+    }
+
+    public void testFileArchiveIsSentFromItsChannel() throws Exception
+    {
+        File file = new File(directory, "stax-deploy.zip");
+        TestFiles.write(file, archive);
+        final long[] reported = new long[1];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            String url = new HttpStreamingUploader(server.getUrl(), "key", "secret").upload(
+                APP_ID, "test", "a message", "war", in, file.length(), new WriteListener()
+                {
+                    public void handleBytesWritten(long deltaCount, long totalWritten, long totalToWrite)
+                    {
+                        reported[0] = totalWritten;
+                    }
+                });
+            assertEquals(server.getUrl() + "/apps/" + APP_ID, url);
+        } finally {
+            in.close();
+        }
+        assertArchiveDeployed();
+        assertEquals(archive.length, reported[0]);
+    }
+
+    public void testStreamOfUnknownLengthIsSentChunked() throws Exception
+    {
+        new HttpStreamingUploader(server.getUrl(), "key", "secret").upload(
+            APP_ID, "test", "a message", "war", new ByteArrayInputStream(archive), -1, null);
+        assertArchiveDeployed();
+    }
+
+    private void assertArchiveDeployed() throws IOException
+    {
+        FileInputStream in = new FileInputStream(server.getArchiveFile(APP_ID, "war"));
+        try {
+            assertTrue("deployed archive matches", Arrays.equals(archive, StreamHelper.readAll(in)));
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.staxnet.mojo.tomcat;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase
+{
+    public void testSmallValuesAreExact()
+    {
+        for (long value = 0; value < 128; value++) {
+            assertEquals(value, LatencyHistogram.indexOf(value));
+            assertEquals(value, LatencyHistogram.highestEquivalentValue((int) value));
+        }
+    }
+
+    public void testBucketBoundaries()
+    {
+        assertEquals(127, LatencyHistogram.indexOf(127));
+        assertEquals(128, LatencyHistogram.indexOf(128));
+        assertEquals(128, LatencyHistogram.indexOf(129));
+        assertEquals(129, LatencyHistogram.indexOf(130));
+        assertEquals(191, LatencyHistogram.indexOf(255));
+        assertEquals(192, LatencyHistogram.indexOf(256));
+        assertEquals(192, LatencyHistogram.indexOf(259));
+        assertEquals(193, LatencyHistogram.indexOf(260));
+
+        assertEquals(129, LatencyHistogram.highestEquivalentValue(128));
+        assertEquals(255, LatencyHistogram.highestEquivalentValue(191));
+        assertEquals(259, LatencyHistogram.highestEquivalentValue(192));
+    }
+
+    public void testEveryValueIsWithinItsBucket()
+    {
+        int previous = -1;
+        for (long value = 0; value < 1 << 16; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue("indexes do not go backwards at " + value, index >= previous);
+            assertTrue("index skipped at " + value, index <= previous + 1);
+            long highest = LatencyHistogram.highestEquivalentValue(index);
+            assertTrue(value + " <= " + highest, value <= highest);
+            assertTrue("within 1/64 of " + value, highest - value <= value / 64);
+            previous = index;
+        }
+    }
+
+    public void testVeryLargeValues()
+    {
+        long[] values = new long[] { 1000000000000L, 1L << 40, (1L << 62) + 12345, Long.MAX_VALUE };
+        for (long value : values) {
+            long highest = LatencyHistogram.highestEquivalentValue(LatencyHistogram.indexOf(value));
+            assertTrue(value + " <= " + highest, value <= highest);
+            assertTrue("within 1/64 of " + value, highest - value <= value / 64);
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(5, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+    }
+
+    public void testPercentilesAndAdd()
+    {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++)
+            first.record(i * 1000);
+        for (int i = 51; i <= 100; i++)
+            second.record(i * 1000);
+        first.add(second);
+        assertEquals(100, first.getTotalCount());
+        assertEquals(1000, first.getMin());
+        assertEquals(100000, first.getMax());
+        assertEquals(50500.0, first.getMean(), 0.001);
+        long p50 = first.getValueAtPercentile(50);
+        assertTrue(String.valueOf(p50), p50 >= 50000 && p50 <= 50000 + 50000 / 64);
+        assertEquals(100000, first.getValueAtPercentile(100));
+    }
+
+    public void testEmptyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+}
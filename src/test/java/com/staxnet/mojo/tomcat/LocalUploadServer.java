@@ -0,0 +1,409 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the archive upload service, so that
+ * {@link ChunkedArchiveUploader} and {@link HttpStreamingUploader} can be
+ * tested without a network. It listens on the loopback interface, requires
+ * (but does not check) basic credentials and writes each deployed archive to
+ * its directory as {app id}.{archive type}, with '/' in the app id replaced
+ * by '_'.
+ *
+ * To exercise retries and resumed uploads it can drop the connection of part
+ * requests without answering, see {@link #setDropEvery(int)} and
+ * {@link #setDropAfter(int)}, or corrupt a part on its way in, see
+ * {@link #setCorruptPart(int)}.
+ */
+public class LocalUploadServer
+{
+    private File directory;
+    private HttpServer server;
+    private ExecutorService executor;
+    private Map<String, Upload> uploads = new HashMap<String, Upload>();
+    private int nextId = 1;
+    private int dropEvery = 0;
+    private int dropAfter = -1;
+    private int corruptPart = -1;
+    private String extraListing = "";
+    private int partRequests = 0;
+    private int partsStored = 0;
+
+    /**
+     * @param port the port to listen on, or 0 for any free port
+     * @param directory where uploads are staged and archives written
+     * @throws IOException
+     */
+    public LocalUploadServer(int port, File directory) throws IOException
+    {
+        this.directory = directory;
+        directory.mkdirs();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port), 0);
+        server.createContext("/", new Handler());
+    }
+
+    public void start()
+    {
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("bees-upload-server"));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Makes the server drop the connection of every nth part request after
+     * reading part of its body, without storing the part or answering.
+     *
+     * @param dropEvery n, or 0 to answer every request
+     */
+    public synchronized void setDropEvery(int dropEvery)
+    {
+        this.dropEvery = dropEvery;
+    }
+
+    /**
+     * Makes the server drop the connection of every part request, as
+     * {@link #setDropEvery(int)} does, once n parts have been stored.
+     *
+     * @param dropAfter n, or -1 to stop dropping
+     */
+    public synchronized void setDropAfter(int dropAfter)
+    {
+        this.dropAfter = dropAfter;
+    }
+
+    /**
+     * Makes the server change a byte of the next copy of a part it receives,
+     * as if it had been corrupted in transit.
+     *
+     * @param number the part number, or -1 to leave every part intact
+     */
+    public synchronized void setCorruptPart(int number)
+    {
+        this.corruptPart = number;
+    }
+
+    /**
+     * Appends lines to every listing of an upload's parts, e.g. to check
+     * that a malformed listing is handled.
+     *
+     * @param lines
+     */
+    public synchronized void setExtraListing(String lines)
+    {
+        this.extraListing = lines;
+    }
+
+    /**
+     * @return the number of part requests received, including dropped ones
+     */
+    public synchronized int getPartRequests()
+    {
+        return partRequests;
+    }
+
+    /**
+     * @return the number of uploads started and not yet committed or deleted
+     */
+    public synchronized int getOpenUploads()
+    {
+        return uploads.size();
+    }
+
+    private synchronized boolean shouldDrop()
+    {
+        partRequests++;
+        if (dropAfter >= 0 && partsStored >= dropAfter)
+            return true;
+        return dropEvery > 0 && partRequests % dropEvery == 0;
+    }
+
+    private synchronized boolean shouldCorrupt(String number)
+    {
+        if (!String.valueOf(corruptPart).equals(number))
+            return false;
+        corruptPart = -1;
+        return true;
+    }
+
+    private synchronized void partStored()
+    {
+        partsStored++;
+    }
+
+    /**
+     * @return the URL to pass as bees.uploadUrl
+     */
+    public String getUrl()
+    {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param appId
+     * @param archiveType
+     * @return the file a deployed archive is written to
+     */
+    public File getArchiveFile(String appId, String archiveType)
+    {
+        return new File(directory, appId.replace('/', '_') + "." + archiveType);
+    }
+
+    private synchronized Upload createUpload(Map<String, String> params) throws IOException
+    {
+        String id = String.valueOf(nextId++);
+        Upload upload = new Upload(params.get("app_id"), params.get("archive_type"),
+                                   new File(directory, "upload-" + id));
+        upload.directory.mkdirs();
+        uploads.put(id, upload);
+        return upload;
+    }
+
+    private synchronized Upload getUpload(String id) throws HttpException
+    {
+        Upload upload = uploads.get(id);
+        if (upload == null)
+            throw new HttpException(404, "unknown upload " + id);
+        return upload;
+    }
+
+    private synchronized Upload removeUpload(String id) throws HttpException
+    {
+        Upload upload = getUpload(id);
+        uploads.remove(id);
+        return upload;
+    }
+
+    private String deploy(Map<String, String> params, InputStream archive) throws IOException
+    {
+        String appId = require(params, "app_id");
+        File file = getArchiveFile(appId, require(params, "archive_type"));
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            StreamHelper.transferStream(archive, out);
+        } finally {
+            out.close();
+        }
+        return getUrl() + "/apps/" + appId;
+    }
+
+    private String putPart(String id, String number, HttpExchange exchange) throws IOException
+    {
+        Upload upload = getUpload(id);
+        byte[] data = StreamHelper.readAll(exchange.getRequestBody());
+        if (data.length > 0 && shouldCorrupt(number))
+            data[0] ^= 1;
+        String hash = StreamHelper.sha1(new ByteArrayInputStream(data));
+        String expected = exchange.getRequestHeaders().getFirst(ChunkedArchiveUploader.PART_HASH_HEADER);
+        if (expected != null && !expected.equalsIgnoreCase(hash))
+            throw new HttpException(400, "part " + number + " checksum mismatch: expected "
+                                    + expected + ", received " + hash);
+        FileOutputStream out = new FileOutputStream(new File(upload.directory, "part-" + number));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        synchronized (upload) {
+            upload.parts.put(Integer.valueOf(number), hash);
+        }
+        partStored();
+        return hash;
+    }
+
+    private String listParts(String id) throws HttpException
+    {
+        Upload upload = getUpload(id);
+        StringBuilder list = new StringBuilder();
+        synchronized (upload) {
+            for (Map.Entry<Integer, String> part : upload.parts.entrySet())
+                list.append(part.getKey()).append(' ').append(part.getValue()).append('\n');
+        }
+        synchronized (this) {
+            list.append(extraListing);
+        }
+        return list.toString();
+    }
+
+    private String commit(String id, InputStream manifest) throws IOException
+    {
+        Upload upload = removeUpload(id);
+        File file = getArchiveFile(upload.appId, upload.archiveType);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, "UTF-8"));
+            int expected = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0)
+                    continue;
+                String[] fields = line.trim().split(" ");
+                Integer number = Integer.valueOf(fields[0]);
+                String hash;
+                synchronized (upload) {
+                    hash = upload.parts.get(number);
+                }
+                if (number.intValue() != expected++ || hash == null)
+                    throw new HttpException(400, "part " + number + " is missing or out of order");
+                if (!hash.equalsIgnoreCase(fields[1]))
+                    throw new HttpException(400, "part " + number + " checksum mismatch");
+                ChannelHelper.transfer(new File(upload.directory, "part-" + number), out.getChannel());
+            }
+        } finally {
+            out.close();
+            delete(upload);
+        }
+        return getUrl() + "/apps/" + upload.appId;
+    }
+
+    private void delete(Upload upload)
+    {
+        File[] files = upload.directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        upload.directory.delete();
+    }
+
+    private static String require(Map<String, String> params, String name) throws HttpException
+    {
+        String value = params.get(name);
+        if (value == null)
+            throw new HttpException(400, "missing parameter " + name);
+        return value;
+    }
+
+    private static Map<String, String> parseQuery(URI uri) throws IOException
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        String query = uri.getRawQuery();
+        if (query == null)
+            return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                           URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private class Handler implements HttpHandler
+    {
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (exchange.getRequestMethod().equals("PUT") && shouldDrop()) {
+                exchange.getRequestBody().read(new byte[1024]);
+                exchange.close();
+                return;
+            }
+            int status = 200;
+            String body;
+            try {
+                body = dispatch(exchange);
+            } catch (HttpException e) {
+                status = e.status;
+                body = e.getMessage();
+            } catch (Exception e) {
+                status = 500;
+                body = String.valueOf(e);
+            }
+            StreamHelper.consumeStream(exchange.getRequestBody());
+            byte[] response = (body == null ? "" : body).getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(status, response.length == 0 ? -1 : response.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(response);
+            } finally {
+                out.close();
+            }
+        }
+
+        private String dispatch(HttpExchange exchange) throws IOException
+        {
+            if (exchange.getRequestHeaders().getFirst("Authorization") == null)
+                throw new HttpException(401, "credentials required");
+
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring(1).split("/");
+            Map<String, String> params = parseQuery(exchange.getRequestURI());
+
+            if (method.equals("POST") && path.length == 1 && path[0].equals("deploy"))
+                return deploy(params, exchange.getRequestBody());
+            if (path.length >= 1 && path[0].equals("uploads")) {
+                if (method.equals("POST") && path.length == 1) {
+                    require(params, "app_id");
+                    require(params, "archive_type");
+                    Upload upload = createUpload(params);
+                    return upload.directory.getName().substring("upload-".length());
+                }
+                if (method.equals("GET") && path.length == 2)
+                    return listParts(path[1]);
+                if (method.equals("PUT") && path.length == 4 && path[2].equals("parts"))
+                    return putPart(path[1], path[3], exchange);
+                if (method.equals("POST") && path.length == 3 && path[2].equals("commit"))
+                    return commit(path[1], exchange.getRequestBody());
+                if (method.equals("DELETE") && path.length == 2) {
+                    delete(removeUpload(path[1]));
+                    return null;
+                }
+            }
+            throw new HttpException(404, "no such resource: " + method + " "
+                                    + exchange.getRequestURI().getPath());
+        }
+    }
+
+    private static class Upload
+    {
+        String appId;
+        String archiveType;
+        File directory;
+        Map<Integer, String> parts = new HashMap<Integer, String>();
+
+        Upload(String appId, String archiveType, File directory)
+        {
+            this.appId = appId;
+            this.archiveType = archiveType;
+            this.directory = directory;
+        }
+    }
+
+    private static class HttpException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+        int status;
+
+        HttpException(int status, String message)
+        {
+            super(message);
+            this.status = status;
+        }
+    }
+}
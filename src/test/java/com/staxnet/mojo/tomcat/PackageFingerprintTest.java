@@ -0,0 +1,96 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class PackageFingerprintTest extends TestCase
+{
+    private File directory;
+    private File input;
+    private File output;
+    private File fingerprintFile;
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-fingerprint");
+        input = new File(directory, "app.war");
+        output = new File(directory, "stax-deploy.zip");
+        fingerprintFile = new File(directory, "stax-deploy.zip.fingerprint");
+        TestFiles.write(input, "input".getBytes("UTF-8"));
+        TestFiles.write(output, "output".getBytes("UTF-8"));
+    }
+
+    protected void tearDown() throws Exception
+    {
+        TestFiles.delete(directory);
+    }
+
+    public void testUnchangedInputsMatch() throws Exception
+    {
+        fingerprint(false).save(fingerprintFile, output);
+        assertTrue(fingerprint(false).matches(fingerprintFile, output));
+    }
+
+    public void testChangedInputDoesNotMatch() throws Exception
+    {
+        fingerprint(false).save(fingerprintFile, output);
+        TestFiles.write(input, "changed input".getBytes("UTF-8"));
+        assertFalse(fingerprint(false).matches(fingerprintFile, output));
+    }
+
+    public void testContentHashSeesChangesOfTheSameSizeAndTime() throws Exception
+    {
+        fingerprint(true).save(fingerprintFile, output);
+        long modified = input.lastModified();
+        TestFiles.write(input, "INPUT".getBytes("UTF-8"));
+        input.setLastModified(modified);
+        assertFalse(fingerprint(true).matches(fingerprintFile, output));
+    }
+
+    public void testChangedSettingDoesNotMatch() throws Exception
+    {
+        fingerprint(false).save(fingerprintFile, output);
+        PackageFingerprint changed = fingerprint(false).addValue("compression", "9");
+        assertFalse(changed.matches(fingerprintFile, output));
+    }
+
+    public void testReplacedPackageDoesNotMatch() throws Exception
+    {
+        fingerprint(false).save(fingerprintFile, output);
+        TestFiles.write(output, "another package".getBytes("UTF-8"));
+        assertFalse(fingerprint(false).matches(fingerprintFile, output));
+    }
+
+    public void testMissingPackageDoesNotMatch() throws Exception
+    {
+        fingerprint(false).save(fingerprintFile, output);
+        output.delete();
+        assertFalse(fingerprint(false).matches(fingerprintFile, output));
+    }
+
+    public void testDirectoryMatchesUntilAFileIsAddedOrRemoved() throws Exception
+    {
+        File webapp = new File(directory, "webapp");
+        TestFiles.write(new File(webapp, "index.html"), "index".getBytes("UTF-8"));
+        TestFiles.write(new File(webapp, "WEB-INF/web.xml"), "<web-app/>".getBytes("UTF-8"));
+        new PackageFingerprint().addDirectory("webapp", webapp, false).save(fingerprintFile, output);
+        assertTrue(new PackageFingerprint().addDirectory("webapp", webapp, false).matches(fingerprintFile, output));
+
+        File added = new File(webapp, "WEB-INF/classes/App.class");
+        TestFiles.write(added, "class".getBytes("UTF-8"));
+        assertFalse(new PackageFingerprint().addDirectory("webapp", webapp, false).matches(fingerprintFile, output));
+
+        TestFiles.delete(new File(webapp, "WEB-INF/classes"));
+        new File(webapp, "index.html").delete();
+        assertFalse(new PackageFingerprint().addDirectory("webapp", webapp, false).matches(fingerprintFile, output));
+    }
+
+    private PackageFingerprint fingerprint(boolean hashContent) throws Exception
+    {
+        return new PackageFingerprint()
+            .addFile("warFile", input, hashContent)
+            .addFile("appxml", new File(directory, "application.xml"), hashContent)
+            .addValue("compression", "6");
+    }
+}
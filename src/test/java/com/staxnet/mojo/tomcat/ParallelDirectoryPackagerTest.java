@@ -0,0 +1,122 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+public class ParallelDirectoryPackagerTest extends TestCase
+{
+    private File directory;
+    private File webapp;
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-package");
+        webapp = new File(directory, "webapp");
+        Random random = new Random(42);
+        for (int i = 0; i < 40; i++)
+            TestFiles.write(new File(webapp, "pages/page" + i + ".html"), text(random, 1000 + i * 500));
+        byte[] image = new byte[20000];
+        random.nextBytes(image);
+        TestFiles.write(new File(webapp, "images/logo.png"), image);
+        TestFiles.write(new File(webapp, "WEB-INF/lib/large.jar"), text(random, 300000));
+        TestFiles.write(new File(webapp, "WEB-INF/web.xml"), "<web-app/>".getBytes("UTF-8"));
+        TestFiles.write(new File(webapp, "empty.txt"), new byte[0]);
+        new File(webapp, "WEB-INF/tmp").mkdirs();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        TestFiles.delete(directory);
+    }
+
+    /**
+     * With a cap of a few files, the writer waits for memory to be released
+     * and the large file is streamed in blocks; the archive must still hold
+     * what the serial packager writes.
+     */
+    public void testSmallMemoryCapMatchesTheSerialArchive() throws Exception
+    {
+        CompressionPolicy policy = new DefaultCompressionPolicy();
+        File serial = new File(directory, "serial.war");
+        FileOutputStream fos = new FileOutputStream(serial);
+        RawZipOutputStream zos = new RawZipOutputStream(fos, fos.getChannel());
+        try {
+            ZipHelper.addDirectoryToZip(webapp, null, null, zos, policy);
+        } finally {
+            zos.close();
+        }
+
+        File parallel = new File(directory, "parallel.war");
+        fos = new FileOutputStream(parallel);
+        zos = new RawZipOutputStream(fos, fos.getChannel());
+        try {
+            new ParallelDirectoryPackager(4, 64 * 1024, policy).addDirectory(webapp, null, null, zos);
+        } finally {
+            zos.close();
+        }
+
+        TreeMap<String, ZipEntry> expected = entries(serial);
+        TreeMap<String, ZipEntry> actual = entries(parallel);
+        assertEquals(expected.keySet(), actual.keySet());
+        assertTrue(expected.containsKey("WEB-INF/tmp/"));
+        ZipFile serialZip = new ZipFile(serial);
+        ZipFile parallelZip = new ZipFile(parallel);
+        try {
+            for (String name : expected.keySet()) {
+                ZipEntry e = expected.get(name);
+                ZipEntry a = actual.get(name);
+                assertEquals(name, e.getMethod(), a.getMethod());
+                assertEquals(name, e.getSize(), a.getSize());
+                assertEquals(name, e.getCrc(), a.getCrc());
+                assertTrue(name, Arrays.equals(read(serialZip, e), read(parallelZip, a)));
+            }
+        } finally {
+            serialZip.close();
+            parallelZip.close();
+        }
+    }
+
+    private static TreeMap<String, ZipEntry> entries(File file) throws IOException
+    {
+        TreeMap<String, ZipEntry> entries = new TreeMap<String, ZipEntry>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                assertNull("duplicate " + entry.getName(), entries.put(entry.getName(), entry));
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException
+    {
+        InputStream in = zip.getInputStream(entry);
+        try {
+            return StreamHelper.readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] text(Random random, int length)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) ('a' + random.nextInt(8));
+        return data;
+    }
+}
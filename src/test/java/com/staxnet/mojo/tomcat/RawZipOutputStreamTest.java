@@ -0,0 +1,339 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+public class RawZipOutputStreamTest extends TestCase
+{
+    private static final long FOUR_GIB = 0x100000000L;
+
+    private File directory;
+    private File zip;
+    private Map<String, byte[]> expected = new HashMap<String, byte[]>();
+
+    protected void setUp() throws Exception
+    {
+        directory = TestFiles.createTempDirectory("bees-zip");
+        zip = new File(directory, "test.zip");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        TestFiles.delete(directory);
+    }
+
+    public void testStoredEntries() throws Exception
+    {
+        byte[] known = random(10000);
+        byte[] patched = random(20000);
+        FileOutputStream fos = new FileOutputStream(zip);
+        RawZipOutputStream zos = new RawZipOutputStream(fos, fos.getChannel());
+        try {
+            assertTrue(zos.canPatchHeaders());
+            ZipEntry entry = new ZipEntry("known.bin");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(known.length);
+            entry.setCrc(crc(known));
+            zos.putNextEntry(entry);
+            zos.write(known);
+            expected.put("known.bin", known);
+
+            entry = new ZipEntry("patched.bin");
+            entry.setMethod(ZipEntry.STORED);
+            zos.putNextEntry(entry);
+            zos.write(patched, 0, 5000);
+            zos.write(patched, 5000, patched.length - 5000);
+            expected.put("patched.bin", patched);
+        } finally {
+            zos.close();
+        }
+        assertArchive(ZipEntry.STORED);
+    }
+
+    public void testStoredEntryNeedsCrcWithoutAChannel() throws Exception
+    {
+        RawZipOutputStream zos = new RawZipOutputStream(new ByteArrayOutputStream());
+        assertFalse(zos.canPatchHeaders());
+        ZipEntry entry = new ZipEntry("stored.bin");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(10);
+        try {
+            zos.putNextEntry(entry);
+            fail("a STORED entry needs its crc without a channel to patch it in");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testDeflatedEntries() throws Exception
+    {
+        byte[] text = text(300000);
+        RawZipOutputStream zos = new RawZipOutputStream(new FileOutputStream(zip));
+        try {
+            zos.setLevel(Deflater.BEST_SPEED);
+            zos.putNextEntry(new ZipEntry("index.html"));
+            for (int i = 0; i < text.length; i += 7000)
+                zos.write(text, i, Math.min(7000, text.length - i));
+            expected.put("index.html", text);
+        } finally {
+            zos.close();
+        }
+        assertArchive(ZipEntry.DEFLATED);
+        assertTrue("text is compressed", zip.length() < text.length / 2);
+    }
+
+    public void testParallelDeflateInSeveralBlocks() throws Exception
+    {
+        byte[] text = text(5 * 32 * 1024 + 123);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ParallelDeflater.Result result = new ParallelDeflater(3, 32 * 1024, Deflater.DEFAULT_COMPRESSION)
+            .deflate(new ByteArrayInputStream(text), raw);
+        assertEquals(text.length, result.getSize());
+        assertEquals(crc(text), result.getCrc());
+        assertEquals(raw.size(), result.getCompressedSize());
+        assertTrue("the blocks inflate to the input", Arrays.equals(text, inflate(raw.toByteArray())));
+
+        RawZipOutputStream zos = new RawZipOutputStream(new FileOutputStream(zip));
+        try {
+            // crc and sizes supplied when the entry is closed
+            zos.putRawEntry(new ZipEntry("closed.txt"));
+            zos.write(raw.toByteArray());
+            zos.closeRawEntry(result.getCrc(), result.getSize());
+            expected.put("closed.txt", text);
+
+            // crc and sizes known up front
+            ZipEntry entry = new ZipEntry("known.txt");
+            entry.setCrc(result.getCrc());
+            entry.setSize(result.getSize());
+            entry.setCompressedSize(result.getCompressedSize());
+            zos.putRawEntry(entry);
+            zos.write(raw.toByteArray());
+            zos.closeEntry();
+            expected.put("known.txt", text);
+        } finally {
+            zos.close();
+        }
+        assertArchive(ZipEntry.DEFLATED);
+    }
+
+    public void testEmptyEntries() throws Exception
+    {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ParallelDeflater.Result result = new ParallelDeflater(2).deflate(new ByteArrayInputStream(new byte[0]), raw);
+        assertEquals(0, result.getSize());
+        assertEquals(0, result.getCrc());
+
+        FileOutputStream fos = new FileOutputStream(zip);
+        RawZipOutputStream zos = new RawZipOutputStream(fos, fos.getChannel());
+        try {
+            ZipEntry entry = new ZipEntry("stored");
+            entry.setMethod(ZipEntry.STORED);
+            zos.putNextEntry(entry);
+            zos.putNextEntry(new ZipEntry("deflated"));
+            zos.putRawEntry(new ZipEntry("raw"));
+            zos.write(raw.toByteArray());
+            zos.closeRawEntry(result.getCrc(), result.getSize());
+        } finally {
+            zos.close();
+        }
+        expected.put("stored", new byte[0]);
+        expected.put("deflated", new byte[0]);
+        expected.put("raw", new byte[0]);
+        assertArchive(-1);
+    }
+
+    /**
+     * Writes an entry of more than 4 GiB of zeros into a sparse file, so the
+     * entry's size and the offset of the entry after it need zip64 records,
+     * without the test writing 4 GiB to disk.
+     */
+    public void testZip64SizesAndOffsets() throws Exception
+    {
+        long size = FOUR_GIB + 1;
+        byte[] zeros = new byte[1024 * 1024];
+        CRC32 crc = new CRC32();
+        for (long left = size; left > 0; left -= zeros.length)
+            crc.update(zeros, 0, (int) Math.min(zeros.length, left));
+        byte[] after = text(1000);
+
+        RandomAccessFile file = new RandomAccessFile(zip, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            RawZipOutputStream zos = new RawZipOutputStream(new SparseOutputStream(channel), channel);
+            ZipEntry entry = new ZipEntry("large.bin");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            zos.putNextEntry(entry);
+            for (long left = size; left > 0; left -= zeros.length)
+                zos.write(zeros, 0, (int) Math.min(zeros.length, left));
+            zos.putNextEntry(new ZipEntry("after.txt"));
+            zos.write(after);
+            zos.finish();
+        } finally {
+            file.close();
+        }
+        assertTrue(zip.length() > size);
+
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            ZipEntry large = zipFile.getEntry("large.bin");
+            assertEquals(size, large.getSize());
+            assertEquals(size, large.getCompressedSize());
+            assertEquals(crc.getValue(), large.getCrc());
+            ZipEntry entry = zipFile.getEntry("after.txt");
+            assertEquals(after.length, entry.getSize());
+            assertEquals(crc(after), entry.getCrc());
+            InputStream in = zipFile.getInputStream(entry);
+            try {
+                assertTrue("entry beyond 4 GiB", Arrays.equals(after, StreamHelper.readAll(in)));
+            } finally {
+                in.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private void assertArchive(int method) throws IOException
+    {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(expected.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+                ZipEntry entry = zipFile.getEntry(e.getKey());
+                assertNotNull(e.getKey(), entry);
+                if (method != -1)
+                    assertEquals(e.getKey(), method, entry.getMethod());
+                assertEquals(e.getKey(), e.getValue().length, entry.getSize());
+                assertEquals(e.getKey(), crc(e.getValue()), entry.getCrc());
+                if (entry.getMethod() == ZipEntry.STORED)
+                    assertEquals(e.getKey(), entry.getSize(), entry.getCompressedSize());
+                InputStream in = zipFile.getInputStream(entry);
+                try {
+                    assertTrue(e.getKey(), Arrays.equals(e.getValue(), StreamHelper.readAll(in)));
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        int count = 0;
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(zip));
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                byte[] content = StreamHelper.readAll(zis);
+                assertTrue(entry.getName(), Arrays.equals(expected.get(entry.getName()), content));
+                // the reader checks the crc once the entry has been read
+                assertEquals(entry.getName(), crc(content), entry.getCrc());
+                assertEquals(entry.getName(), content.length, entry.getSize());
+                count++;
+            }
+        } finally {
+            zis.close();
+        }
+        assertEquals(expected.size(), count);
+    }
+
+    private static long crc(byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static byte[] inflate(byte[] raw) throws Exception
+    {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(raw);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buffer);
+            if (n == 0 && inflater.needsInput())
+                break;
+            out.write(buffer, 0, n);
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] random(int length)
+    {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] text(int length)
+    {
+        byte[] data = new byte[length];
+        Random random = new Random(42);
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) ('a' + random.nextInt(8));
+        return data;
+    }
+
+    /**
+     * Writes to a file channel, but leaves holes instead of writing blocks
+     * that are all zeros.
+     */
+    private static class SparseOutputStream extends OutputStream
+    {
+        private FileChannel channel;
+        private long position;
+
+        SparseOutputStream(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            this.position = channel.position();
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (len >= 4096 && isZero(b, off, len)) {
+                position += len;
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+
+        private static boolean isZero(byte[] b, int off, int len)
+        {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] != 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+}
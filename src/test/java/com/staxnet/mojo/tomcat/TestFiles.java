@@ -0,0 +1,58 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Temporary file fixtures shared by the tests.
+ */
+public class TestFiles
+{
+    private TestFiles()
+    {
+    }
+
+    /**
+     * Creates an empty directory under java.io.tmpdir.
+     *
+     * @param prefix
+     * @return the new directory, to be removed with {@link #delete(File)}
+     * @throws IOException
+     */
+    public static File createTempDirectory(String prefix) throws IOException
+    {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdirs())
+            throw new IOException("could not create " + directory);
+        return directory;
+    }
+
+    /**
+     * Deletes a file, or a directory and everything under it.
+     *
+     * @param file
+     */
+    public static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    public static void write(File file, byte[] data) throws IOException
+    {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+public class UploadMetricsTest extends TestCase
+{
+    private static final long MILLIS = 1000000L;
+
+    private long now = 0;
+    private ByteArrayOutputStream progress = new ByteArrayOutputStream();
+    private UploadMetrics metrics = new UploadMetrics(new PrintStream(progress))
+    {
+        long nanoTime()
+        {
+            return now;
+        }
+    };
+
+    public void testRates() throws Exception
+    {
+        metrics.start();
+        write(500, 1000, 1000);
+        assertEquals(2000.0, metrics.getInstantRate(), 1e-6);
+        assertEquals(2000.0, metrics.getSmoothedRate(), 1e-6);
+        write(1500, 2000, 3000);
+        assertEquals(2000.0, metrics.getSmoothedRate(), 1e-6);
+        write(2500, 3000, 6000);
+        double smoothed = 2000 + (1 - Math.exp(-1.0 / 5)) * (3000 - 2000);
+        assertEquals(3000.0, metrics.getInstantRate(), 1e-6);
+        assertEquals(smoothed, metrics.getSmoothedRate(), 1e-6);
+        assertEquals((long) Math.ceil(500 / smoothed), metrics.getEtaSeconds());
+        write(3200, 500, 6500);
+        assertEquals(500 / 0.7, metrics.getInstantRate(), 1e-6);
+        assertEquals(smoothed + (1 - Math.exp(-0.7 / 5)) * (500 / 0.7 - smoothed),
+                     metrics.getSmoothedRate(), 1e-6);
+        assertEquals(0, metrics.getEtaSeconds());
+        assertEquals(6500 / 3.2, metrics.getAverageRate(), 1e-6);
+    }
+
+    public void testPercentilesLeaveOutThePartialLastSecond() throws Exception
+    {
+        metrics.start();
+        write(500, 1000, 1000);
+        write(1500, 3000, 4000);
+        write(2500, 2000, 6000);
+        write(3200, 500, 6500);
+        assertEquals(1000.0, metrics.getPercentile(0), 0.0);
+        assertEquals(2000.0, metrics.getPercentile(50), 0.0);
+        assertEquals(3000.0, metrics.getPercentile(90), 0.0);
+        assertEquals(3000.0, metrics.getPercentile(100), 0.0);
+    }
+
+    public void testShortUploadUsesTheAverageRate() throws Exception
+    {
+        metrics.start();
+        write(250, 1000, 1000);
+        write(500, 1000, 2000);
+        assertEquals(4000.0, metrics.getPercentile(50), 1e-6);
+    }
+
+    public void testProgressIsPrintedOncePerSecondAndAtTheEnd() throws Exception
+    {
+        metrics.setLabel("acme/app");
+        metrics.start();
+        write(500, 1000, 1000);
+        write(900, 1000, 2000);
+        write(1500, 2000, 4000);
+        write(2000, 1000, 5000);
+        write(2500, 1000, 6000);
+        write(2600, 500, 6500);
+        String[] lines = progress.toString("UTF-8").trim().split("\\r?\\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("acme/app: uploaded 3.9 KB of 6.3 KB (61%), "));
+        assertTrue(lines[2], lines[2].startsWith("acme/app: uploaded 6.3 KB of 6.3 KB (100%), "));
+    }
+
+    public void testSummary() throws Exception
+    {
+        metrics.setAttribute("appId", "acme/\"app\"");
+        metrics.start();
+        write(500, 1000, 1000);
+        write(1500, 2000, 3000);
+        write(2500, 3000, 6000);
+        write(3200, 500, 6500);
+
+        File file = File.createTempFile("bees-metrics", ".json");
+        try {
+            metrics.writeSummary(file, true);
+            FileInputStream in = new FileInputStream(file);
+            String json;
+            try {
+                json = new String(StreamHelper.readAll(in), "UTF-8");
+            } finally {
+                in.close();
+            }
+            assertTrue(json, json.startsWith("{\n  \"timestamp\": \""));
+            assertTrue(json, json.contains("\n  \"appId\": \"acme/\\\"app\\\"\",\n"));
+            assertTrue(json, json.contains("\n  \"succeeded\": true,\n"));
+            assertTrue(json, json.contains("\n  \"bytes\": 6500,\n  \"expectedBytes\": 6500,\n"));
+            assertTrue(json, json.contains("\n  \"durationMillis\": 3200,\n"));
+            assertTrue(json, json.contains("\n  \"averageBytesPerSecond\": 2031,\n"));
+            assertTrue(json, json.contains("\n  \"seconds\": 3,\n"));
+            assertTrue(json, json.endsWith("\n  \"bytesPerSecondPercentiles\": { \"min\": 1000, \"p50\": 2000, "
+                                           + "\"p90\": 3000, \"p99\": 3000, \"max\": 3000 }\n}\n"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void write(long millis, long delta, long total)
+    {
+        now = millis * MILLIS;
+        metrics.handleBytesWritten(delta, total, 6500);
+    }
+}
@@ -0,0 +1,182 @@
+package com.staxnet.mojo.tomcat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+public class ZipHelperTest extends TestCase
+{
+    private byte[] descriptor;
+    private byte[] large;
+    private byte[] zip;
+
+    protected void setUp() throws Exception
+    {
+        descriptor = "<stax-web-app/>".getBytes("UTF-8");
+        large = new byte[1024 * 1024];
+        new Random(42).nextBytes(large);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bout);
+        putEntry(zos, "WEB-INF/stax-web.xml", descriptor);
+        putEntry(zos, "WEB-INF/lib/large.jar", large);
+        putEntry(zos, "META-INF/stax-application.xml", descriptor);
+        zos.close();
+        zip = bout.toByteArray();
+    }
+
+    public void testOpenZipEntryStopsAfterTheEntry() throws Exception
+    {
+        CountingInputStream counter = new CountingInputStream(new ByteArrayInputStream(zip));
+        InputStream in = ZipHelper.openZipEntry(counter, "WEB-INF/stax-web.xml");
+        assertNotNull(in);
+        try {
+            assertTrue("entry content", Arrays.equals(descriptor, StreamHelper.readAll(in)));
+        } finally {
+            in.close();
+        }
+        assertTrue("read " + counter.count + " of " + zip.length + " bytes",
+                   counter.count < large.length / 2);
+        assertTrue(counter.closed);
+    }
+
+    public void testMissingEntryClosesTheArchive() throws Exception
+    {
+        CountingInputStream counter = new CountingInputStream(new ByteArrayInputStream(zip));
+        assertNull(ZipHelper.openZipEntry(counter, "WEB-INF/cloudbees-web.xml"));
+        assertTrue(counter.closed);
+
+        InputStream in = ZipHelper.getZipEntry(new ByteArrayInputStream(zip), "WEB-INF/cloudbees-web.xml");
+        assertEquals(-1, in.read());
+    }
+
+    public void testGetZipEntryReadsTheEntry() throws Exception
+    {
+        InputStream in = ZipHelper.getZipEntry(new ByteArrayInputStream(zip), "WEB-INF/lib/large.jar");
+        try {
+            assertTrue("entry content", Arrays.equals(large, StreamHelper.readAll(in)));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testGetZipEntriesReturnsTheEntriesInTheOrderGiven() throws Exception
+    {
+        File file = File.createTempFile("bees-zip", ".zip");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(zip);
+            } finally {
+                out.close();
+            }
+            Map<String, byte[]> entries = ZipHelper.getZipEntries(file, Arrays.asList(
+                "META-INF/stax-application.xml", "WEB-INF/stax-web.xml", "WEB-INF/cloudbees-web.xml"));
+            assertEquals(Arrays.asList("META-INF/stax-application.xml", "WEB-INF/stax-web.xml"),
+                         Arrays.asList(entries.keySet().toArray()));
+            assertTrue(Arrays.equals(descriptor, entries.get("META-INF/stax-application.xml")));
+            assertTrue(Arrays.equals(descriptor, entries.get("WEB-INF/stax-web.xml")));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testUnzipFileExtractsEveryEntry() throws Exception
+    {
+        File directory = TestFiles.createTempDirectory("bees-unzip");
+        try {
+            File file = new File(directory, "app.war");
+            TestFiles.write(file, zip);
+            File target = new File(directory, "webapp");
+            ZipHelper.unzipFile(file, target, 3);
+            assertTrue(Arrays.equals(descriptor, read(new File(target, "WEB-INF/stax-web.xml"))));
+            assertTrue(Arrays.equals(large, read(new File(target, "WEB-INF/lib/large.jar"))));
+            assertTrue(Arrays.equals(descriptor, read(new File(target, "META-INF/stax-application.xml"))));
+        } finally {
+            TestFiles.delete(directory);
+        }
+    }
+
+    public void testUnzipFileRejectsEntriesOutsideTheTarget() throws Exception
+    {
+        File directory = TestFiles.createTempDirectory("bees-unzip");
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ZipOutputStream zos = new ZipOutputStream(bout);
+            putEntry(zos, "WEB-INF/web.xml", descriptor);
+            putEntry(zos, "../escaped.txt", descriptor);
+            zos.close();
+            File file = new File(directory, "app.war");
+            TestFiles.write(file, bout.toByteArray());
+            try {
+                ZipHelper.unzipFile(file, new File(directory, "webapp"), 2);
+                fail("an entry outside the target directory is extracted");
+            } catch (IOException expected) {
+            }
+            assertFalse(new File(directory, "escaped.txt").exists());
+        } finally {
+            TestFiles.delete(directory);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return StreamHelper.readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void putEntry(ZipOutputStream zos, String name, byte[] content) throws IOException
+    {
+        zos.putNextEntry(new ZipEntry(name));
+        zos.write(content);
+        zos.closeEntry();
+    }
+
+    private static class CountingInputStream extends FilterInputStream
+    {
+        long count = 0;
+        boolean closed = false;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b != -1)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public void close() throws IOException
+        {
+            closed = true;
+            super.close();
+        }
+    }
+}